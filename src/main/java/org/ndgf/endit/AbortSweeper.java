@@ -0,0 +1,149 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes the files of aborted tasks in the background.
+ *
+ * Cancelling a task only withdraws its request, which decides whether the task
+ * can be cancelled at all; the remaining files of the task are removed later by
+ * calling {@link PollingTask#cleanup} from a small pool of sweeper threads. Every
+ * sweeper thread drains the shared queue of aborted tasks, so cancelling a large
+ * number of tasks results in a few parallel sweeps rather than one executor task
+ * or several synchronous file removals per cancellation.
+ */
+class AbortSweeper
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbortSweeper.class);
+
+    private final Queue<PollingTask<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sweepers = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+    private volatile int threads;
+
+    AbortSweeper(int threads)
+    {
+        this.threads = threads;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                          new ThreadFactoryBuilder().setNameFormat("endit-sweeper-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the maximum number of parallel sweeps.
+     */
+    public void setThreads(int threads)
+    {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Queues an aborted task for removal of its files. Once the sweeper has been
+     * shut down, the files are removed by the calling thread.
+     */
+    public void cleanup(PollingTask<?> task)
+    {
+        if (executor.isShutdown()) {
+            cleanupNow(task);
+        } else {
+            queue.add(task);
+            startSweeper();
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued tasks to be swept.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     */
+    public void shutdown(long timeout)
+    {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Shutdown timed out with files of {} aborted requests left behind.", queue.size());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startSweeper()
+    {
+        int n;
+        do {
+            n = sweepers.get();
+            if (n >= threads) {
+                return;
+            }
+        } while (!sweepers.compareAndSet(n, n + 1));
+        try {
+            executor.execute(this::sweep);
+        } catch (RejectedExecutionException e) {
+            sweepers.decrementAndGet();
+        }
+    }
+
+    private void sweep()
+    {
+        try {
+            PollingTask<?> task;
+            while ((task = queue.poll()) != null) {
+                cleanupNow(task);
+            }
+        } finally {
+            sweepers.decrementAndGet();
+        }
+        /* A task may have been queued after the queue was found empty, but before
+         * this sweeper was accounted as finished.
+         */
+        if (!queue.isEmpty()) {
+            startSweeper();
+        }
+    }
+
+    private static void cleanupNow(PollingTask<?> task)
+    {
+        try {
+            task.cleanup();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to remove files of aborted request {}: {}", task.getId(), e.toString());
+        }
+    }
+}
@@ -21,16 +21,27 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.dcache.pool.nearline.spi.FlushRequest;
 import org.dcache.pool.nearline.spi.RemoveRequest;
@@ -42,24 +53,64 @@ import static com.google.common.base.Preconditions.checkState;
 
 public abstract class AbstractEnditNearlineStorage extends ListeningNearlineStorage
 {
+    private final static Logger LOGGER = LoggerFactory.getLogger(AbstractEnditNearlineStorage.class);
+
     protected final String type;
     protected final String name;
+    protected volatile Path dir;
+    protected volatile String protocol;
     protected volatile Path inDir;
     protected volatile Path outDir;
     protected volatile Path requestDir;
     protected volatile Path trashDir;
+    protected volatile Path containerDir;
+    protected volatile RequestPublisher publisher;
+    protected volatile TrashWriter trashWriter;
+    protected volatile NotificationChannel notificationChannel;
+    protected final AbortSweeper sweeper = new AbortSweeper(8);
+    protected final ArrivalDetector arrivalDetector = new ArrivalDetector();
+    protected final RecallClassifier classifier = new RecallClassifier();
+    protected final RetryPolicy retryPolicy = new RetryPolicy();
+    protected volatile long shutdownTimeout;
+
+    /** Stage for timers and future continuations. Must never block on I/O. */
+    protected final Stage control;
+
+    /** Stage for file system operations. */
+    protected final Stage io;
+
+    /** Stage for copying file content into and out of containers. */
+    protected final Stage data;
+
+    /** Orders the starts of tasks on the I/O stage by priority and storage class. */
+    protected final PublicationQueue publications;
+
+    protected final EnditMetrics metrics;
+    private ScheduledFuture<?> metricsLogger;
+
+    /** Packs small files into containers when flushing. */
+    protected final FlushAggregator aggregator;
+
+    /** Shares recalls of containers among the stages of their members. */
+    protected final ContainerRecalls containers;
+
+    /** Flushes not yet completed, by pnfsid. */
+    private final TaskIndex<String, PendingFlush> flushes = new TaskIndex<>();
 
     public AbstractEnditNearlineStorage(String type, String name)
     {
         this.type = type;
         this.name = name;
+        control = Stage.scheduled(name + "-control", 2);
+        io = Stage.fixed(name + "-io", 20);
+        data = Stage.fixed(name + "-data", 2);
+        publications = new PublicationQueue(io);
+        metrics = new EnditMetrics(name, control, io, data);
+        aggregator = new FlushAggregator(type, name, this::flushContainer, this::trashContainer, data.executor(),
+                                         control.scheduler());
+        containers = new ContainerRecalls(this::recallContainer);
     }
 
-    /**
-     * Returns an executor suitable for background tasks and callbacks.
-     */
-    protected abstract ListeningExecutorService executor();
-
     /**
      * Schedules periodic execution of a PollingTask. The specific policy and mechanism
      * used depends on the implementation.
@@ -70,91 +121,629 @@ public abstract class AbstractEnditNearlineStorage extends ListeningNearlineStor
      */
     protected abstract <T> ListenableFuture<T> schedule(PollingTask<T> task);
 
+    /**
+     * Polls the task with the given key right away, if such a task exists. Called
+     * when Endit signals that the state of the request has changed.
+     *
+     * @param key pnfsid of the file and kind of request
+     */
+    protected abstract void poll(TaskKey key);
+
+    /**
+     * Polls the tasks of both kinds for the file with the given pnfsid right away.
+     * Used when Endit signals a change without telling the kind of request.
+     *
+     * @param id pnfsid of the file
+     */
+    protected void poll(String id)
+    {
+        for (PollingTask.Action action : PollingTask.Action.values()) {
+            poll(new TaskKey(id, action));
+        }
+    }
+
+    /**
+     * Fails the task with the given key, if such a task exists.
+     *
+     * @param key pnfsid of the file and kind of request
+     * @param cause the failure reported by Endit
+     */
+    protected abstract void fail(TaskKey key, EnditException cause);
+
+    /**
+     * Fails the tasks of both kinds for the file with the given pnfsid. Used when
+     * Endit reports a failure without telling the kind of request.
+     *
+     * @param id pnfsid of the file
+     * @param cause the failure reported by Endit
+     */
+    protected void fail(String id, EnditException cause)
+    {
+        for (PollingTask.Action action : PollingTask.Action.values()) {
+            fail(new TaskKey(id, action), cause);
+        }
+    }
+
+    /**
+     * Configures the nearline storage.
+     *
+     * Changing the directory or the protocol requires the nearline storage to be
+     * idle. All other parameters are tunable while requests are queued: the queued
+     * requests stay where they are and pick up the new settings.
+     */
     @Override
     public synchronized void configure(Map<String, String> properties) throws IllegalArgumentException
     {
-        checkState(!hasTasks(), "The nearline storage is busy and cannot be reconfigured.");
-
         String path = properties.get("directory");
         checkArgument(path != null, "conf attribute is required");
         Path dir = FileSystems.getDefault().getPath(path);
-        checkArgument(Files.isDirectory(dir), dir + " is not a directory.");
+        checkArgument(EnditFiles.isDirectory(dir), dir + " is not a directory.");
         Path requestDir = dir.resolve("request");
         Path outDir = dir.resolve("out");
         Path inDir = dir.resolve("in");
         Path trashDir = dir.resolve("trash");
-        checkArgument(Files.isDirectory(requestDir), requestDir + " is not a directory.");
-        checkArgument(Files.isDirectory(outDir), outDir + " is not a directory.");
-        checkArgument(Files.isDirectory(inDir), inDir + " is not a directory.");
-        checkArgument(Files.isDirectory(trashDir), trashDir + " is not a directory.");
-
-        try (DirectoryStream<Path> paths = Files.newDirectoryStream(requestDir)) {
-            for (Path requestFile : paths) {
-                Files.deleteIfExists(requestFile);
+        checkArgument(EnditFiles.isDirectory(requestDir), requestDir + " is not a directory.");
+        checkArgument(EnditFiles.isDirectory(outDir), outDir + " is not a directory.");
+        checkArgument(EnditFiles.isDirectory(inDir), inDir + " is not a directory.");
+        checkArgument(EnditFiles.isDirectory(trashDir), trashDir + " is not a directory.");
+
+        String protocol = properties.getOrDefault("protocol", "file");
+        int manifestSize = Integer.parseInt(properties.getOrDefault("manifest-size", "1000"));
+        int manifestDelay = Integer.parseInt(properties.getOrDefault("manifest-delay", "1000"));
+        checkArgument(protocol.equals("file") || protocol.equals("manifest"), "Unknown protocol: " + protocol);
+        checkArgument(manifestSize > 0, "manifest-size must be positive.");
+        checkArgument(manifestDelay > 0, "manifest-delay must be positive.");
+        int trashBatchSize = Integer.parseInt(properties.getOrDefault("trash-batch-size", "1"));
+        int trashBatchDelay = Integer.parseInt(properties.getOrDefault("trash-batch-delay", "1000"));
+        checkArgument(trashBatchSize > 0, "trash-batch-size must be positive.");
+        checkArgument(trashBatchDelay > 0, "trash-batch-delay must be positive.");
+
+        boolean queueIndex = Boolean.parseBoolean(properties.getOrDefault("queue-index", "false"));
+        long queueIndexCompact = Long.parseLong(properties.getOrDefault("queue-index-compact", "60000"));
+        checkArgument(queueIndexCompact > 0, "queue-index-compact must be positive.");
+
+        String notificationSocket = properties.get("notification-socket");
+
+        String arrival = properties.getOrDefault("arrival", "grace");
+        long arrivalQuiet = Long.parseLong(properties.getOrDefault("arrival-quiet", "1000"));
+        ArrivalDetector.Strategy arrivalStrategy;
+        try {
+            arrivalStrategy = ArrivalDetector.Strategy.valueOf(arrival.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown arrival detection: " + arrival);
+        }
+        checkArgument(arrivalQuiet >= 0, "arrival-quiet must not be negative.");
+
+        String interactiveStorageClasses = properties.get("interactive-storage-classes");
+        String interactivePaths = properties.get("interactive-paths");
+        Pattern interactiveStorageClassPattern =
+                (interactiveStorageClasses == null) ? null : Pattern.compile(interactiveStorageClasses);
+        Pattern interactivePathPattern = (interactivePaths == null) ? null : Pattern.compile(interactivePaths);
+
+        Map<String, Double> storageClassWeights = new HashMap<>();
+        String weights = properties.get("storage-class-weights");
+        if (weights != null && !weights.isEmpty()) {
+            for (String weight : weights.split(",")) {
+                int i = weight.lastIndexOf('=');
+                checkArgument(i > 0, "Invalid storage class weight: " + weight);
+                double value = Double.parseDouble(weight.substring(i + 1));
+                checkArgument(value > 0, "Storage class weights must be positive.");
+                storageClassWeights.put(weight.substring(0, i).trim(), value);
             }
-        } catch (IOException e) {
-            new RuntimeException(e);
-            // Throwables.propagate(e);
         }
+        Set<Integer> retryCodes = new HashSet<>();
+        String codes = properties.get("retry-codes");
+        if (codes != null && !codes.isEmpty()) {
+            for (String code : codes.split(",")) {
+                retryCodes.add(Integer.parseInt(code.trim()));
+            }
+        }
+        int retryAttempts = Integer.parseInt(properties.getOrDefault("retry-attempts", "3"));
+        long retryDelay = Long.parseLong(properties.getOrDefault("retry-delay", "60000"));
+        long retryMaxDelay = Long.parseLong(properties.getOrDefault("retry-max-delay", "3600000"));
+        checkArgument(retryAttempts >= 0, "retry-attempts must not be negative.");
+        checkArgument(retryDelay > 0, "retry-delay must be positive.");
+        checkArgument(retryMaxDelay >= retryDelay, "retry-max-delay must not be less than retry-delay.");
+
+        long aggregateThreshold = Long.parseLong(properties.getOrDefault("aggregate-threshold", "0"));
+        long aggregateSize = Long.parseLong(properties.getOrDefault("aggregate-size", "10737418240"));
+        long aggregateDelay = Long.parseLong(properties.getOrDefault("aggregate-delay", "300000"));
+        checkArgument(aggregateThreshold >= 0, "aggregate-threshold must not be negative.");
+        checkArgument(aggregateSize > 0, "aggregate-size must be positive.");
+        checkArgument(aggregateDelay > 0, "aggregate-delay must be positive.");
+        Path containerDir = dir.resolve("containers");
+        if (aggregateThreshold > 0) {
+            try {
+                EnditFiles.createDirectories(containerDir);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to create " + containerDir + ": " + e.getMessage(), e);
+            }
+        }
+
+        double storageClassShare = Double.parseDouble(properties.getOrDefault("storage-class-share", "1.0"));
+        checkArgument(storageClassShare > 0 && storageClassShare <= 1, "storage-class-share must be in (0, 1].");
+
+        /* The budget is shared by all providers, so only explicitly set values are applied. */
+        Map<MetadataBudget.Kind, Double> metadataRates = new EnumMap<>(MetadataBudget.Kind.class);
+        String metadataRate = properties.get("metadata-rate");
+        for (MetadataBudget.Kind kind : MetadataBudget.Kind.values()) {
+            String value = properties.getOrDefault("metadata-rate-" + kind.name().toLowerCase(), metadataRate);
+            if (value != null) {
+                double rate = Double.parseDouble(value);
+                checkArgument(rate >= 0, "metadata rates must not be negative.");
+                metadataRates.put(kind, rate);
+            }
+        }
+        Integer metadataBurst = properties.containsKey("metadata-burst")
+                                ? Integer.valueOf(properties.get("metadata-burst")) : null;
+        checkArgument(metadataBurst == null || metadataBurst >= 0, "metadata-burst must not be negative.");
+
+        long metricsInterval = Long.parseLong(properties.getOrDefault("metrics-interval", "60000"));
+        checkArgument(metricsInterval >= 0, "metrics-interval must not be negative.");
+
+        int threads = Integer.parseInt(properties.getOrDefault("threads", "20"));
+        int controlThreads = Integer.parseInt(properties.getOrDefault("control-threads", "2"));
+        int dataThreads = Integer.parseInt(properties.getOrDefault("data-threads", "2"));
+        checkArgument(threads > 0, "threads must be positive.");
+        checkArgument(controlThreads > 0, "control-threads must be positive.");
+        checkArgument(dataThreads > 0, "data-threads must be positive.");
+        int cleanupThreads = Integer.parseInt(properties.getOrDefault("cleanup-threads", "8"));
+        long shutdownTimeout = Long.parseLong(properties.getOrDefault("shutdown-timeout", "30000"));
+        checkArgument(cleanupThreads > 0, "cleanup-threads must be positive.");
+
+        boolean relocated = !dir.equals(this.dir) || !protocol.equals(this.protocol)
+                            || queueIndex != (this.publisher instanceof IndexingRequestPublisher);
+        checkState(!relocated || !hasTasks(),
+                   "The nearline storage is busy and cannot be moved to another directory, protocol or queue index.");
+
+        if (relocated) {
+            RequestPublisher publisher;
+            if (protocol.equals("manifest")) {
+                publisher = new ManifestRequestPublisher(requestDir, manifestSize, manifestDelay, this::poll);
+            } else {
+                publisher = new FileRequestPublisher(requestDir);
+            }
+            if (queueIndex) {
+                try {
+                    publisher = new IndexingRequestPublisher(publisher, dir, queueIndexCompact,
+                                                            io.executor(), control.scheduler());
+                } catch (IOException e) {
+                    publisher.shutdown();
+                    throw new IllegalArgumentException("Failed to create queue index: " + e.getMessage(), e);
+                }
+            }
+
+            try (DirectoryStream<Path> paths = EnditFiles.newDirectoryStream(requestDir, "*")) {
+                for (Path requestFile : paths) {
+                    EnditFiles.deleteIfExists(requestFile);
+                }
+            } catch (IOException e) {
+                new RuntimeException(e);
+                // Throwables.propagate(e);
+            }
+
+            this.dir = dir;
+            this.protocol = protocol;
+            this.requestDir = requestDir;
+            this.outDir = outDir;
+            this.inDir = inDir;
+            this.trashDir = trashDir;
+            this.containerDir = containerDir;
+
+            if (this.publisher != null) {
+                this.publisher.shutdown();
+            }
+            this.publisher = publisher;
+        } else {
+            RequestPublisher publisher = this.publisher;
+            if (publisher instanceof IndexingRequestPublisher) {
+                ((IndexingRequestPublisher) publisher).setCompactInterval(queueIndexCompact);
+                publisher = ((IndexingRequestPublisher) publisher).getPublisher();
+            }
+            if (publisher instanceof ManifestRequestPublisher) {
+                ((ManifestRequestPublisher) publisher).setLimits(manifestSize, manifestDelay);
+            }
+        }
+
+        this.shutdownTimeout = shutdownTimeout;
+        arrivalDetector.configure(arrivalStrategy, arrivalQuiet);
+        classifier.configure(interactiveStorageClassPattern, interactivePathPattern);
+        publications.configure(storageClassWeights, storageClassShare);
+        retryPolicy.configure(retryCodes, retryAttempts, retryDelay, retryMaxDelay);
+        aggregator.configure(containerDir, aggregateThreshold, aggregateSize, aggregateDelay);
+        if (relocated) {
+            /* Containers of an earlier run are resumed once the new directories are in place. */
+            aggregator.reconcile(outDir);
+        }
+        metadataRates.forEach(MetadataBudget::setRate);
+        if (metadataBurst != null) {
+            MetadataBudget.setBurst(metadataBurst);
+        }
+        io.setThreads(threads);
+        control.setThreads(controlThreads);
+        data.setThreads(dataThreads);
+        sweeper.setThreads(cleanupThreads);
+
+        metrics.register();
+        if (metricsLogger != null) {
+            metricsLogger.cancel(false);
+            metricsLogger = null;
+        }
+        if (metricsInterval > 0) {
+            metricsLogger = control.scheduler().scheduleWithFixedDelay(metrics::log, metricsInterval, metricsInterval,
+                                                                       TimeUnit.MILLISECONDS);
+        }
+
+        if (trashWriter != null && trashBatchSize > 1 && !relocated) {
+            trashWriter.setLimits(trashBatchSize, trashBatchDelay);
+        } else {
+            TrashWriter previous = trashWriter;
+            trashWriter = (trashBatchSize > 1) ? new TrashWriter(trashDir, trashBatchSize, trashBatchDelay) : null;
+            if (previous != null) {
+                previous.shutdown();
+            }
+        }
+
+        Path socket = (notificationSocket != null) ? dir.resolve(notificationSocket) : null;
+        if (notificationChannel != null && !notificationChannel.getSocket().equals(socket)) {
+            notificationChannel.shutdown();
+            notificationChannel = null;
+        }
+        if (notificationChannel == null && socket != null) {
+            try {
+                notificationChannel = new NotificationChannel(this, socket);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to bind notification socket: " + e.getMessage(), e);
+            }
+        }
+    }
 
-        this.requestDir = requestDir;
-        this.outDir = outDir;
-        this.inDir = inDir;
-        this.trashDir = trashDir;
+    /**
+     * Cancels the given tasks and waits for the files of the cancelled tasks to be
+     * removed, all within the shutdown timeout. The aborts are exempt from the
+     * metadata budget; tasks left once the timeout has passed are not aborted.
+     */
+    protected void cancelAll(Iterable<? extends Future<?>> tasks)
+    {
+        long deadline = System.currentTimeMillis() + shutdownTimeout;
+        MetadataBudget.exempt(() -> {
+            int left = 0;
+            for (Future<?> task : tasks) {
+                if (System.currentTimeMillis() < deadline) {
+                    task.cancel(true);
+                } else if (!task.isDone()) {
+                    left++;
+                }
+            }
+            if (left > 0) {
+                LOGGER.warn("[{}] Shutdown timed out with {} requests left in Endit.", name, left);
+            }
+        });
+        sweeper.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    /**
+     * Releases the resources shared by all Endit nearline storage variants.
+     */
+    protected void shutdownPublishers()
+    {
+        aggregator.shutdown();
+        metrics.unregister();
+        io.shutdown();
+        data.shutdown();
+        control.shutdown();
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+        if (trashWriter != null) {
+            trashWriter.shutdown();
+        }
+        if (notificationChannel != null) {
+            notificationChannel.shutdown();
+        }
     }
 
     @Override
     public ListenableFuture<Void> remove(final RemoveRequest request)
     {
-        return executor().submit(new RemoveTask(request, trashDir));
+        EnditMetrics.Tracker tracker = metrics.begin(EnditMetrics.Phase.REMOVE, null);
+        ContainerLocation location;
+        String pnfsId;
+        try {
+            location = ContainerLocation.of(request.getUri(), type, name);
+            pnfsId = (location != null) ? RemoveTask.getPnfsId(request.getUri()) : null;
+        } catch (IllegalArgumentException e) {
+            return tracker.end(Futures.immediateFailedFuture(e));
+        }
+        if (location != null) {
+            /* The container is removed from tape with the last of its members. */
+            return tracker.end(Futures.submitAsync(() -> aggregator.remove(location, pnfsId)
+                                                         ? trashContainer(location.container)
+                                                         : Futures.immediateFuture(null), io.executor()));
+        }
+        PendingFlush flush = null;
+        try {
+            flush = flushes.get(RemoveTask.getPnfsId(request.getUri()));
+        } catch (IllegalArgumentException ignored) {
+            /* Reported by the trash writer or the remove task. */
+        }
+        if (flush != null && flush.future.cancel(true)) {
+            LOGGER.debug("[{}] Cancelled pending flush of {}.", name, request.getUri());
+            FlushTask task = flush.task;
+            if (task.preempt()) {
+                /* The request was never published, so Endit cannot have written the file to tape. */
+                return tracker.end(Futures.immediateFuture(null));
+            }
+            /* Once published, Endit may have got hold of the file even if it was withdrawn
+             * from the out directory, so the trash entry is written after the withdrawal.
+             */
+            return tracker.end(Futures.transformAsync(task.withdrawn(),
+                                                      new AsyncFunction<Boolean, Void>()
+                                                      {
+                                                          @Override
+                                                          public ListenableFuture<Void> apply(Boolean withdrawn)
+                                                          {
+                                                              return trash(request);
+                                                          }
+                                                      }, io.executor()));
+        }
+        return tracker.end(trash(request));
+    }
+
+    /**
+     * Tells Endit to remove the file from tape.
+     */
+    private ListenableFuture<Void> trash(RemoveRequest request)
+    {
+        return trash(request.getUri());
+    }
+
+    private ListenableFuture<Void> trash(URI uri)
+    {
+        TrashWriter trashWriter = this.trashWriter;
+        if (trashWriter != null) {
+            return trashWriter.add(uri);
+        }
+        return io.executor().submit(new RemoveTask(uri, trashDir));
+    }
+
+    /**
+     * Tells Endit to remove a container without live members from tape.
+     */
+    private ListenableFuture<Void> trashContainer(String id)
+    {
+        LOGGER.debug("[{}] Removing container {}.", name, id);
+        try {
+            return trash(new URI(type, name, null, "bfid=" + id, null));
+        } catch (URISyntaxException e) {
+            return Futures.immediateFailedFuture(e);
+        }
     }
 
     @Override
     protected ListenableFuture<Set<URI>> flush(FlushRequest request)
     {
-        final PollingTask<Set<URI>> task = new FlushTask(request, requestDir, outDir, type, name);
-        return Futures.transformAsync(request.activate(),
+        if (aggregator.accepts(request)) {
+            return aggregate(request);
+        }
+        final FlushTask flushTask = new FlushTask(request, publisher, outDir, type, name, metrics);
+        final EnditMetrics.Tracker tracker =
+                metrics.begin(EnditMetrics.Phase.FLUSH, request.getFileAttributes().getStorageClass());
+        final PublicationQueue.Ticket ticket =
+                publications.ticket(RecallClassifier.BULK, request.getFileAttributes().getStorageClass());
+        final PollingTask<Set<URI>> task = retrying(flushTask, ticket);
+        final RequestFuture<Set<URI>> result = new RequestFuture<>();
+        return pending(flushTask, result.follow(release(ticket, Futures.transformAsync(tracker.time(EnditMetrics.Phase.ACTIVATE, request.activate()),
                                  new AsyncFunction<Void, Set<URI>>()
                                  {
                                      @Override
                                      public ListenableFuture<Set<URI>> apply(Void ignored) throws Exception
                                      {
-                                         Set<URI> uris = task.start();
+                                         long start = System.nanoTime();
+                                         Set<URI> uris;
+                                         try {
+                                             uris = EnditEvents.start(task, "migrate", request.getFileAttributes().getStorageClass());
+                                         } catch (Exception e) {
+                                             flushTask.settled();
+                                             throw e;
+                                         }
+                                         metrics.get(EnditMetrics.Phase.PUBLISH).recordSince(start);
                                          if (uris != null) {
+                                             flushTask.settled();
                                              return Futures.immediateFuture(uris);
                                          } else {
-                                             return schedule(task);
+                                             /* Aborting the task completes the withdrawal before the future. */
+                                             ListenableFuture<Set<URI>> future = schedule(task);
+                                             future.addListener(flushTask::settled, MoreExecutors.directExecutor());
+                                             return tracker.time(EnditMetrics.Phase.ENDIT_QUEUE, result.scheduled(future));
                                          }
                                      }
-                                 }, executor());
+                                 }, ticket))), tracker);
+    }
+
+    /**
+     * Indexes the flush by pnfsid until it completes, so that a remove of the file
+     * can cancel it.
+     */
+    private ListenableFuture<Set<URI>> pending(FlushTask task, ListenableFuture<Set<URI>> future,
+                                               EnditMetrics.Tracker tracker)
+    {
+        PendingFlush flush = new PendingFlush(task, future);
+        if (flushes.putIfAbsent(task.getId(), flush) == null) {
+            future.addListener(() -> flushes.remove(task.getId(), flush), MoreExecutors.directExecutor());
+        }
+        return tracker.end(future);
+    }
+
+    /**
+     * Flushes a small file as part of a container.
+     */
+    private ListenableFuture<Set<URI>> aggregate(FlushRequest request)
+    {
+        final EnditMetrics.Tracker tracker =
+                metrics.begin(EnditMetrics.Phase.FLUSH, request.getFileAttributes().getStorageClass());
+        return tracker.end(Futures.transformAsync(tracker.time(EnditMetrics.Phase.ACTIVATE, request.activate()),
+                                 new AsyncFunction<Void, Set<URI>>()
+                                 {
+                                     @Override
+                                     public ListenableFuture<Set<URI>> apply(Void ignored)
+                                     {
+                                         return tracker.time(EnditMetrics.Phase.ENDIT_QUEUE, aggregator.add(request));
+                                     }
+                                 }, control.executor()));
+    }
+
+    /**
+     * Migrates a container written by the aggregator.
+     */
+    private ListenableFuture<String> flushContainer(String id, long size, String storageClass)
+    {
+        final PublicationQueue.Ticket ticket = publications.ticket(RecallClassifier.BULK, storageClass);
+        final PollingTask<String> task =
+                retrying(new ContainerFlushTask(id, size, storageClass, publisher, containerDir, outDir, metrics),
+                         ticket);
+        return release(ticket, Futures.submitAsync(() -> {
+            String result = EnditEvents.start(task, "migrate", storageClass);
+            return (result != null) ? Futures.immediateFuture(result) : schedule(task);
+        }, ticket));
+    }
+
+    /**
+     * Recalls a container into the in directory.
+     */
+    private ListenableFuture<Path> recallContainer(ContainerLocation location, String storageClass, int priority)
+    {
+        final PublicationQueue.Ticket ticket = publications.ticket(priority, storageClass);
+        final PollingTask<Path> task =
+                retrying(new ContainerStageTask(location, storageClass, priority, publisher, requestDir, inDir,
+                                                metrics, arrivalDetector), ticket);
+        return release(ticket, Futures.submitAsync(() -> {
+            Path result = EnditEvents.start(task, "recall", storageClass);
+            return (result != null) ? Futures.immediateFuture(result) : schedule(task);
+        }, ticket));
+    }
+
+    /**
+     * Stages a file flushed as part of a container. The container is recalled once
+     * for all of its members staged at the same time.
+     */
+    private ListenableFuture<Set<Checksum>> stageFromContainer(StageRequest request, ContainerLocation location)
+    {
+        final String storageClass = request.getFileAttributes().getStorageClass();
+        final EnditMetrics.Tracker tracker = metrics.begin(EnditMetrics.Phase.STAGE, storageClass);
+        /* Cancelling the stage of one member must not cancel the recall shared by all. */
+        final ListenableFuture<Path> recall = Futures.nonCancellationPropagating(
+                containers.acquire(location, storageClass, classifier.classify(request.getFileAttributes())));
+        ListenableFuture<Set<Checksum>> future = Futures.transformAsync(
+                Futures.transformAsync(tracker.time(EnditMetrics.Phase.ACTIVATE, request.activate()),
+                                  new AsyncFunction<Void, Void>()
+                                  {
+                                      @Override
+                                      public ListenableFuture<Void> apply(Void ignored) throws Exception
+                                      {
+                                          return tracker.time(EnditMetrics.Phase.ALLOCATE, request.allocate());
+                                      }
+                                  }, control.executor()),
+                new AsyncFunction<Void, Set<Checksum>>()
+                {
+                    @Override
+                    public ListenableFuture<Set<Checksum>> apply(Void ignored)
+                    {
+                        return Futures.transform(tracker.time(EnditMetrics.Phase.ENDIT_QUEUE, recall),
+                                                 container -> {
+                                                     try {
+                                                         ContainerRecalls.extract(container, location,
+                                                                                  request.getFile().toPath());
+                                                     } catch (IOException e) {
+                                                         throw new UncheckedIOException(e);
+                                                     }
+                                                     return Collections.<Checksum>emptySet();
+                                                 }, data.executor());
+                    }
+                }, control.executor());
+        future.addListener(() -> containers.release(location), io.executor());
+        return tracker.end(future);
     }
 
     @Override
     protected ListenableFuture<Set<Checksum>> stage(final StageRequest request)
     {
-        final PollingTask<Set<Checksum>> task = new StageTask(request, requestDir, inDir);
-        return Futures.transformAsync(
-                Futures.transformAsync(request.activate(),
+        ContainerLocation location;
+        try {
+            location = ContainerLocation.of(request.getFileAttributes(), type, name);
+        } catch (IllegalArgumentException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        if (location != null) {
+            return stageFromContainer(request, location);
+        }
+        final int priority = classifier.classify(request.getFileAttributes());
+        final EnditMetrics.Tracker tracker =
+                metrics.begin(EnditMetrics.Phase.STAGE, request.getFileAttributes().getStorageClass());
+        final PublicationQueue.Ticket ticket =
+                publications.ticket(priority, request.getFileAttributes().getStorageClass());
+        final PollingTask<Set<Checksum>> task =
+                retrying(new StageTask(request, publisher, requestDir, inDir, metrics, arrivalDetector, priority),
+                         ticket);
+        final RequestFuture<Set<Checksum>> result = new RequestFuture<>();
+        return tracker.end(result.follow(release(ticket, Futures.transformAsync(
+                Futures.transformAsync(tracker.time(EnditMetrics.Phase.ACTIVATE, request.activate()),
                                   new AsyncFunction<Void, Void>()
                                   {
                                       @Override
                                       public ListenableFuture<Void> apply(Void ignored) throws Exception
                                       {
-                                          return request.allocate();
+                                          return tracker.time(EnditMetrics.Phase.ALLOCATE, request.allocate());
                                       }
-                                  }, executor()),
+                                  }, control.executor()),
                 new AsyncFunction<Void, Set<Checksum>>()
                 {
                     @Override
                     public ListenableFuture<Set<Checksum>> apply(Void ignored) throws Exception
                     {
-                        Set<Checksum> checksums = task.start();
+                        long start = System.nanoTime();
+                        Set<Checksum> checksums = EnditEvents.start(task, "recall", request.getFileAttributes().getStorageClass());
+                        metrics.get(EnditMetrics.Phase.PUBLISH).recordSince(start);
                         if (checksums != null) {
                             return Futures.immediateFuture(checksums);
                         } else {
-                            return schedule(task);
+                            return tracker.time(EnditMetrics.Phase.ENDIT_QUEUE, result.scheduled(schedule(task)));
                         }
                     }
-                }, executor());
+                }, ticket))));
+    }
+
+    /**
+     * Decorates the task to retry transient failures, if retries are enabled. The
+     * request is published again through the given ticket.
+     */
+    private <T> PollingTask<T> retrying(PollingTask<T> task, PublicationQueue.Ticket ticket)
+    {
+        if (!retryPolicy.isEnabled()) {
+            return task;
+        }
+        return new RetryingTask<>(task, retryPolicy, publisher, metrics, control.scheduler(), ticket,
+                                  id -> poll(new TaskKey(id, task.getAction())));
+    }
+
+    private static class PendingFlush
+    {
+        final FlushTask task;
+        final ListenableFuture<Set<URI>> future;
+
+        PendingFlush(FlushTask task, ListenableFuture<Set<URI>> future)
+        {
+            this.task = task;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Releases the publication ticket of a request once the request is done.
+     */
+    private static <T> ListenableFuture<T> release(PublicationQueue.Ticket ticket, ListenableFuture<T> future)
+    {
+        future.addListener(ticket::release, MoreExecutors.directExecutor());
+        return future;
     }
 }
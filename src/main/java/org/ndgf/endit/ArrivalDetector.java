@@ -0,0 +1,117 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Decides when a file that Endit writes to the in directory is complete and may be
+ * moved into the pool.
+ *
+ * The detector is consulted once the file has the expected size. Strategy and quiet
+ * period may be changed at any time and apply to queued stages from their next poll.
+ */
+class ArrivalDetector
+{
+    /**
+     * Arrival detection strategies.
+     */
+    enum Strategy
+    {
+        /**
+         * Waits for the quiet period and assumes the file is complete. This is the
+         * classic behaviour.
+         */
+        GRACE {
+            @Override
+            boolean isComplete(Path file, BasicFileAttributes attributes, long quietPeriod) throws InterruptedException
+            {
+                Thread.sleep(quietPeriod);
+                return true;
+            }
+        },
+
+        /**
+         * Considers the file complete once it has not been modified for the quiet
+         * period. Only waits for the part of the quiet period that has not yet passed.
+         */
+        MTIME {
+            @Override
+            boolean isComplete(Path file, BasicFileAttributes attributes, long quietPeriod)
+                    throws IOException, InterruptedException
+            {
+                long age = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+                if (age >= quietPeriod) {
+                    return true;
+                }
+                Thread.sleep(quietPeriod - age);
+                try {
+                    BasicFileAttributes current = EnditFiles.readAttributes(file);
+                    return current.size() == attributes.size() &&
+                           current.lastModifiedTime().equals(attributes.lastModifiedTime());
+                } catch (NoSuchFileException e) {
+                    return false;
+                }
+            }
+        },
+
+        /**
+         * Endit writes to a temporary name and renames the file once it is complete,
+         * so a file under the final name is complete right away.
+         */
+        RENAME {
+            @Override
+            boolean isComplete(Path file, BasicFileAttributes attributes, long quietPeriod)
+            {
+                return true;
+            }
+        };
+
+        abstract boolean isComplete(Path file, BasicFileAttributes attributes, long quietPeriod)
+                throws IOException, InterruptedException;
+    }
+
+    private volatile Strategy strategy = Strategy.GRACE;
+    private volatile long quietPeriod = 1000;
+
+    void configure(Strategy strategy, long quietPeriod)
+    {
+        this.strategy = strategy;
+        this.quietPeriod = quietPeriod;
+    }
+
+    Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * Returns whether the given file, which has the expected size, is complete. May
+     * block for at most the quiet period.
+     *
+     * @param file the file in the in directory
+     * @param attributes the attributes of the file
+     */
+    boolean isComplete(Path file, BasicFileAttributes attributes) throws IOException, InterruptedException
+    {
+        return strategy.isComplete(file, attributes, quietPeriod);
+    }
+}
@@ -0,0 +1,269 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Variant of the Endit nearline storage that chooses between file events and
+ * scanning by itself.
+ *
+ * When configured, the in directory is probed in the background while the
+ * storage scans all requests at the poll period. On network and cluster file
+ * systems, and when a test file does not produce a file event in time, the
+ * storage keeps scanning. Otherwise it relies on file events and only scans at
+ * the idle scan period as a fallback.
+ *
+ * The test file is written by this host, so the probe cannot tell whether events
+ * are delivered for files that Endit writes on another host. That is left to the
+ * runtime check: the storage keeps track of whether completions are noticed
+ * through file events or only by the scan, and switches modes accordingly.
+ */
+public class AutoEnditNearlineStorage extends WatchingEnditNearlineStorage
+{
+    private final static Logger LOGGER = LoggerFactory.getLogger(AutoEnditNearlineStorage.class);
+
+    /** File system types on which events for changes made by other hosts are not delivered. */
+    private static final Set<String> REMOTE_FILE_SYSTEMS =
+            ImmutableSet.of("nfs", "nfs4", "cifs", "smb3", "gpfs", "lustre", "ceph", "beegfs", "gfs2", "ocfs2", "afs");
+
+    private static final String PROBE_PREFIX = ".endit-probe-";
+
+    /** Number of completions to observe before switching from scanning to file events. */
+    private static final int MIN_SAMPLES = 20;
+
+    /** Fraction of completions that may be missed by file events. */
+    private static final double MISSED_RATIO = 0.1;
+
+    private final LongAdder eventCompletions = new LongAdder();
+    private final LongAdder scanCompletions = new LongAdder();
+
+    private volatile long period;
+    private volatile long idleScanPeriod;
+    private boolean scanning;
+    private Probe probe;
+
+    public AutoEnditNearlineStorage(String type, String name)
+    {
+        super(type, name);
+    }
+
+    @Override
+    public synchronized void configure(Map<String, String> properties) throws IllegalArgumentException
+    {
+        long period = Long.parseLong(properties.getOrDefault("period", "5000"));
+        long idleScanPeriod = Long.parseLong(properties.getOrDefault("idle-scan-period", "60000"));
+        long probeTimeout = Long.parseLong(properties.getOrDefault("probe-timeout", "2000"));
+        checkArgument(period > 0, "period must be positive.");
+        checkArgument(idleScanPeriod > 0, "idle-scan-period must be positive.");
+        checkArgument(probeTimeout > 0, "probe-timeout must be positive.");
+
+        super.configure(properties);
+
+        this.period = period;
+        this.idleScanPeriod = idleScanPeriod;
+        eventCompletions.reset();
+        scanCompletions.reset();
+
+        /* Scan until the probe has shown that file events are delivered. */
+        LOGGER.info("[{}] Scanning {} every {} ms while probing for file events.", name, inDir, period);
+        scanning = true;
+        setScanPeriod(period);
+        Probe probe = new Probe(inDir, probeTimeout);
+        this.probe = probe;
+        io.execute(probe::start);
+    }
+
+    @Override
+    public synchronized void shutdown()
+    {
+        if (probe != null) {
+            probe.finish("shutting down");
+            probe = null;
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Switches to file events if the given probe succeeded and is still the current one.
+     *
+     * @param reason the reason for scanning, or null if file events are delivered
+     */
+    private synchronized void probed(Probe probe, String reason)
+    {
+        if (probe != this.probe) {
+            return;
+        }
+        this.probe = null;
+        if (reason != null) {
+            LOGGER.info("[{}] Scanning {} every {} ms: {}.", name, probe.dir, period, reason);
+            if (!scanning) {
+                scanning = true;
+                setScanPeriod(period);
+            }
+        } else if (scanning) {
+            LOGGER.info("[{}] Using file events on {}, scanning every {} ms as a fallback.", name, probe.dir, idleScanPeriod);
+            scanning = false;
+            setScanPeriod(idleScanPeriod);
+        }
+    }
+
+    /**
+     * Returns whether the storage scans at the poll period rather than relying on
+     * file events.
+     */
+    synchronized boolean isScanning()
+    {
+        return scanning;
+    }
+
+    /**
+     * Checks whether file events can be relied upon for a directory by writing a
+     * test file and waiting for its event. The probe neither blocks a thread nor
+     * holds the monitor of the storage while waiting: the wait is timed by the
+     * control stage and the file system calls are made on the I/O stage.
+     */
+    private class Probe implements SharedWatchService.Listener
+    {
+        final Path dir;
+        final Path file;
+        final long timeout;
+        final AtomicBoolean done = new AtomicBoolean();
+        SharedWatchService service;
+        SharedWatchService.Registration registration;
+        ScheduledFuture<?> timer;
+
+        Probe(Path dir, long timeout)
+        {
+            this.dir = dir;
+            this.file = dir.resolve(PROBE_PREFIX + UUID.randomUUID());
+            this.timeout = timeout;
+        }
+
+        synchronized void start()
+        {
+            try {
+                String fileSystem = EnditFiles.getFileStore(dir).type();
+                if (REMOTE_FILE_SYSTEMS.contains(fileSystem) || fileSystem.startsWith("fuse")) {
+                    finish("file events are unreliable on " + fileSystem);
+                    return;
+                }
+                service = SharedWatchService.acquire(dir.getFileSystem());
+                registration = service.register(dir, this, StandardWatchEventKinds.ENTRY_CREATE);
+                timer = control.scheduler().schedule(() -> finish("no file event within " + timeout + " ms"),
+                                                     timeout, TimeUnit.MILLISECONDS);
+                EnditFiles.write(file, "");
+            } catch (IOException | RuntimeException e) {
+                finish("failed to probe for file events: " + e);
+            }
+        }
+
+        @Override
+        public void changed(Path path)
+        {
+            if (path.equals(file)) {
+                finish(null);
+            }
+        }
+
+        @Override
+        public void overflow()
+        {
+            finish(null);
+        }
+
+        void finish(String reason)
+        {
+            if (done.compareAndSet(false, true)) {
+                try {
+                    io.execute(() -> {
+                        cleanup();
+                        probed(this, reason);
+                    });
+                } catch (RejectedExecutionException e) {
+                    cleanup();
+                }
+            }
+        }
+
+        private synchronized void cleanup()
+        {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (registration != null) {
+                registration.cancel();
+            }
+            if (service != null) {
+                service.release();
+            }
+            try {
+                EnditFiles.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn("[{}] Failed to remove {}: {}", name, file, e.toString());
+            }
+        }
+    }
+
+    @Override
+    protected void polled(boolean completed)
+    {
+        if (completed) {
+            eventCompletions.increment();
+        }
+    }
+
+    @Override
+    protected synchronized void scanned(int completed)
+    {
+        scanCompletions.add(completed);
+        long missed = scanCompletions.sum();
+        long total = eventCompletions.sum() + missed;
+        if (!scanning && missed > 0 && missed > MISSED_RATIO * total) {
+            LOGGER.warn("[{}] {} of {} completions were not noticed through file events; scanning every {} ms.",
+                        name, missed, total, period);
+            scanning = true;
+            setScanPeriod(period);
+        } else if (scanning && total >= MIN_SAMPLES && missed <= MISSED_RATIO * total) {
+            LOGGER.info("[{}] {} of {} completions were noticed through file events; scanning every {} ms as a fallback.",
+                        name, total - missed, total, idleScanPeriod);
+            scanning = false;
+            setScanPeriod(idleScanPeriod);
+        } else if (total < MIN_SAMPLES) {
+            return;
+        }
+        eventCompletions.reset();
+        scanCompletions.reset();
+    }
+}
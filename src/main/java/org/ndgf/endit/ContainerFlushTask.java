@@ -0,0 +1,117 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Migrates a container written by the flush aggregator.
+ *
+ * The container is moved from the container directory into the out directory
+ * once the request is published, and is done when Endit has removed it again.
+ */
+class ContainerFlushTask implements PollingTask<String>
+{
+    private final String id;
+    private final long size;
+    private final String storageClass;
+    private final RequestPublisher publisher;
+    private final Path containerDir;
+    private final Path outDir;
+    private final EnditMetrics metrics;
+
+    ContainerFlushTask(String id, long size, String storageClass, RequestPublisher publisher, Path containerDir,
+                       Path outDir, EnditMetrics metrics)
+    {
+        this.id = id;
+        this.size = size;
+        this.storageClass = storageClass;
+        this.publisher = publisher;
+        this.containerDir = containerDir;
+        this.outDir = outDir;
+        this.metrics = metrics;
+        metrics.trace(id, RequestTrace.Event.CREATED, "container flush");
+    }
+
+    @Override
+    public String getId()
+    {
+        return id;
+    }
+
+    @Override
+    public Action getAction()
+    {
+        return Action.MIGRATE;
+    }
+
+    @Override
+    public String start() throws IOException
+    {
+        JsonObject jsObj = new JsonObject();
+        jsObj.addProperty("file_size", size);
+        jsObj.addProperty("time", System.currentTimeMillis() / 1000);
+        jsObj.addProperty("storage_class", storageClass);
+        jsObj.addProperty("action", "migrate");
+        jsObj.addProperty("container", true);
+
+        publisher.publish(id, jsObj);
+
+        try {
+            EnditFiles.move(containerDir.resolve(id), outDir.resolve(id), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException ignored) {
+            /* Already moved by an earlier attempt. */
+        }
+        metrics.trace(id, RequestTrace.Event.REQUEST_WRITTEN);
+        return null;
+    }
+
+    @Override
+    public String poll() throws IOException, EnditException
+    {
+        EnditException failure = publisher.getFailure(id);
+        if (failure != null) {
+            metrics.trace(id, RequestTrace.Event.ERROR_READ, failure.getMessage());
+            throw failure;
+        }
+        if (!EnditFiles.exists(outDir.resolve(id))) {
+            metrics.trace(id, RequestTrace.Event.FILE_SEEN, "removed from out");
+            publisher.completed(id);
+            return id;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean abort() throws IOException
+    {
+        /* The members are forgotten first, so that a container left behind is never taken for migrated. */
+        EnditFiles.deleteIfExists(ContainerMembers.pending(containerDir, id));
+        EnditFiles.deleteIfExists(containerDir.resolve(id));
+        if (EnditFiles.deleteIfExists(outDir.resolve(id)) && publisher.withdraw(id)) {
+            metrics.trace(id, RequestTrace.Event.ABORTED);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.base.Splitter;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dcache.vehicles.FileAttributes;
+
+/**
+ * Location of a file packed into a container by flush aggregation.
+ *
+ * The location is recorded in the URI returned for the flush:
+ *
+ *   hsmType://hsmInstance?bfid=pnfsid&container=id&offset=offset&length=length&size=size
+ *
+ * where size is the size of the whole container, which Endit needs to recall it.
+ */
+final class ContainerLocation
+{
+    final String container;
+    final long offset;
+    final long length;
+    final long size;
+
+    ContainerLocation(String container, long offset, long length, long size)
+    {
+        this.container = container;
+        this.offset = offset;
+        this.length = length;
+        this.size = size;
+    }
+
+    /**
+     * Returns the location of the file in a container, or null if the URI was not
+     * issued by the given HSM instance or the file was flushed on its own.
+     *
+     * URIs of other HSM instances are never parsed, and parameters that are not
+     * key value pairs are ignored.
+     *
+     * @throws IllegalArgumentException if the URI names a container of the given
+     *         HSM instance but the location is malformed
+     */
+    static ContainerLocation of(URI uri, String type, String name)
+    {
+        if (!type.equals(uri.getScheme()) || !name.equals(uri.getAuthority())) {
+            return null;
+        }
+        String query = uri.getQuery();
+        if (query == null) {
+            return null;
+        }
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+            int i = parameter.indexOf('=');
+            if (i > 0) {
+                parameters.putIfAbsent(parameter.substring(0, i), parameter.substring(i + 1));
+            }
+        }
+        String container = parameters.get("container");
+        if (container == null) {
+            return null;
+        }
+        try {
+            return new ContainerLocation(container,
+                                         Long.parseLong(parameters.get("offset")),
+                                         Long.parseLong(parameters.get("length")),
+                                         Long.parseLong(parameters.get("size")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid container location: " + uri, e);
+        }
+    }
+
+    /**
+     * Returns the container location among the locations of a file issued by the
+     * given HSM instance, or null if none of them is in a container.
+     */
+    static ContainerLocation of(FileAttributes fileAttributes, String type, String name)
+    {
+        for (URI uri : fileAttributes.getStorageInfo().locations()) {
+            ContainerLocation location = of(uri, type, name);
+            if (location != null) {
+                return location;
+            }
+        }
+        return null;
+    }
+
+    URI toUri(String type, String name, String id) throws URISyntaxException
+    {
+        return new URI(type, name, null,
+                       "bfid=" + id + "&container=" + container + "&offset=" + offset + "&length=" + length
+                       + "&size=" + size, null);
+    }
+}
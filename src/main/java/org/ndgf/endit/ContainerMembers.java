@@ -0,0 +1,191 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.base.Splitter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the members of the containers written by the flush aggregator.
+ *
+ * Every container has a file next to it in the container directory, holding a
+ * line "storageClass size" followed by one line "pnfsid offset length" per
+ * member. The file is named "id.pending" while the container is being flushed,
+ * so that a pool restarted in the meantime can resume the container rather than
+ * pack its members again. Once the members are flushed, the file is renamed to
+ * "id.members" and counts the members still living in dCache; when the last of
+ * them is removed, the file is deleted and the container may be removed from
+ * tape.
+ */
+class ContainerMembers
+{
+    static final String PENDING = ".pending";
+
+    static final String MEMBERS = ".members";
+
+    private volatile Path dir;
+
+    /**
+     * A container and the locations of its members, by pnfsid.
+     */
+    static class Container
+    {
+        final String id;
+        final String storageClass;
+        final long size;
+        final Map<String, ContainerLocation> members;
+
+        Container(String id, String storageClass, long size, Map<String, ContainerLocation> members)
+        {
+            this.id = id;
+            this.storageClass = storageClass;
+            this.size = size;
+            this.members = members;
+        }
+    }
+
+    void configure(Path dir)
+    {
+        this.dir = dir;
+    }
+
+    static Path pending(Path dir, String id)
+    {
+        return dir.resolve(id + PENDING);
+    }
+
+    /**
+     * Records the members of a container about to be flushed.
+     */
+    void create(Container container) throws IOException
+    {
+        Path dir = this.dir;
+        Path tmp = dir.resolve(container.id + PENDING + ".tmp");
+        EnditFiles.write(tmp, format(container));
+        EnditFiles.move(tmp, pending(dir, container.id), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Marks the members of a container as flushed.
+     */
+    void flushed(String id) throws IOException
+    {
+        Path dir = this.dir;
+        EnditFiles.move(pending(dir, id), dir.resolve(id + MEMBERS), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forgets a container that failed to be flushed.
+     */
+    void abandon(String id) throws IOException
+    {
+        EnditFiles.deleteIfExists(pending(dir, id));
+    }
+
+    /**
+     * Strikes off a member removed from dCache.
+     *
+     * @return true if the container has no live members left and may be removed from
+     *         tape; false otherwise, including for containers not recorded here
+     */
+    boolean remove(String id, String pnfsId) throws IOException
+    {
+        /* The file is rewritten under the monitor, so budget waits are deferred until it is released. */
+        try {
+            return MetadataBudget.deferring(() -> strike(id, pnfsId));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private synchronized boolean strike(String id, String pnfsId)
+    {
+        Path dir = this.dir;
+        Path file = dir.resolve(id + MEMBERS);
+        try {
+            if (!EnditFiles.exists(file)) {
+                return false;
+            }
+            Container container = parse(id, EnditFiles.readAllLines(file));
+            if (container.members.remove(pnfsId) == null) {
+                return false;
+            }
+            if (container.members.isEmpty()) {
+                EnditFiles.deleteIfExists(file);
+                return true;
+            }
+            Path tmp = dir.resolve(id + MEMBERS + ".tmp");
+            EnditFiles.write(tmp, format(container));
+            EnditFiles.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the containers not yet flushed.
+     */
+    List<Container> pending() throws IOException
+    {
+        List<Container> containers = new ArrayList<>();
+        try (DirectoryStream<Path> paths = EnditFiles.newDirectoryStream(dir, "*" + PENDING)) {
+            for (Path path : paths) {
+                String file = path.getFileName().toString();
+                String id = file.substring(0, file.length() - PENDING.length());
+                containers.add(parse(id, EnditFiles.readAllLines(path)));
+            }
+        }
+        return containers;
+    }
+
+    private static String format(Container container)
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(container.storageClass).append(' ').append(container.size).append('\n');
+        container.members.forEach((pnfsId, location) ->
+                s.append(pnfsId).append(' ').append(location.offset).append(' ').append(location.length).append('\n'));
+        return s.toString();
+    }
+
+    private static Container parse(String id, List<String> lines) throws IOException
+    {
+        try {
+            List<String> header = Splitter.on(' ').splitToList(lines.get(0));
+            long size = Long.parseLong(header.get(1));
+            Map<String, ContainerLocation> members = new LinkedHashMap<>();
+            for (String line : lines.subList(1, lines.size())) {
+                List<String> fields = Splitter.on(' ').splitToList(line);
+                members.put(fields.get(0), new ContainerLocation(id, Long.parseLong(fields.get(1)),
+                                                                 Long.parseLong(fields.get(2)), size));
+            }
+            return new Container(id, header.get(0), size, members);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Invalid member list of container " + id + ": " + lines, e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Shares the recall of a container among the stages of its members.
+ *
+ * The first stage of a member recalls the container; later stages of members of
+ * the same container wait for the same recall. Every member is copied out of the
+ * recalled container with positioned reads. The container is removed from the in
+ * directory, or its recall cancelled, once the last stage using it is done.
+ */
+class ContainerRecalls
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContainerRecalls.class);
+
+    /**
+     * Recalls a container into the in directory.
+     */
+    interface Recaller
+    {
+        ListenableFuture<Path> recall(ContainerLocation location, String storageClass, int priority);
+    }
+
+    private final Recaller recaller;
+
+    /** Recalls by container id. Guarded by this. */
+    private final Map<String, Recall> recalls = new HashMap<>();
+
+    ContainerRecalls(Recaller recaller)
+    {
+        this.recaller = recaller;
+    }
+
+    /**
+     * Returns the recall of the container holding the given member. Every call must
+     * be matched by a call to {@link #release}.
+     */
+    synchronized ListenableFuture<Path> acquire(ContainerLocation location, String storageClass, int priority)
+    {
+        Recall recall = recalls.get(location.container);
+        if (recall == null) {
+            recall = new Recall(recaller.recall(location, storageClass, priority));
+            recalls.put(location.container, recall);
+        }
+        recall.references++;
+        return recall.future;
+    }
+
+    /**
+     * Releases the recall of the container holding the given member.
+     */
+    void release(ContainerLocation location)
+    {
+        Recall recall;
+        synchronized (this) {
+            recall = recalls.get(location.container);
+            if (recall == null || --recall.references > 0) {
+                return;
+            }
+            recalls.remove(location.container);
+        }
+        if (!recall.future.isDone()) {
+            recall.future.cancel(true);
+        } else {
+            try {
+                EnditFiles.deleteIfExists(recall.future.get());
+            } catch (ExecutionException | InterruptedException | IOException e) {
+                LOGGER.debug("Failed to remove container {}: {}", location.container, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Copies a member out of a recalled container.
+     */
+    static void extract(Path container, ContainerLocation location, Path target) throws IOException
+    {
+        try (FileChannel in = EnditFiles.open(container, StandardOpenOption.READ);
+             FileChannel out = EnditFiles.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < location.length) {
+                long count = in.transferTo(location.offset + position, location.length - position, out);
+                if (count == 0) {
+                    throw new IOException("Container " + location.container + " is truncated.");
+                }
+                position += count;
+            }
+        }
+    }
+
+    private static class Recall
+    {
+        final ListenableFuture<Path> future;
+        int references;
+
+        Recall(ListenableFuture<Path> future)
+        {
+            this.future = future;
+        }
+    }
+}
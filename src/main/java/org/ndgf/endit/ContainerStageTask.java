@@ -0,0 +1,171 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Recalls a container written by the flush aggregator.
+ *
+ * Unlike a StageTask, the recalled container is left in the in directory, from
+ * where the members are read by the stages sharing the recall.
+ */
+class ContainerStageTask implements PollingTask<Path>
+{
+    private final ContainerLocation location;
+    private final String storageClass;
+    private final int priority;
+    private final RequestPublisher publisher;
+    private final Path requestDir;
+    private final Path inDir;
+    private final EnditMetrics metrics;
+    private final ArrivalDetector arrivalDetector;
+
+    /**
+     * Last state traced by a poll, so that polls finding the file in the same state
+     * do not flood the trace. Only accessed by polls, which never run concurrently.
+     */
+    private RequestTrace.Event traced;
+
+    ContainerStageTask(ContainerLocation location, String storageClass, int priority, RequestPublisher publisher,
+                       Path requestDir, Path inDir, EnditMetrics metrics, ArrivalDetector arrivalDetector)
+    {
+        this.location = location;
+        this.storageClass = storageClass;
+        this.priority = priority;
+        this.publisher = publisher;
+        this.requestDir = requestDir;
+        this.inDir = inDir;
+        this.metrics = metrics;
+        this.arrivalDetector = arrivalDetector;
+        metrics.trace(location.container, RequestTrace.Event.CREATED, "container stage");
+    }
+
+    @Override
+    public String getId()
+    {
+        return location.container;
+    }
+
+    @Override
+    public Action getAction()
+    {
+        return Action.RECALL;
+    }
+
+    @Override
+    public Path start() throws IOException
+    {
+        Path inFile = inDir.resolve(location.container);
+        if (EnditFiles.isRegularFile(inFile) && EnditFiles.size(inFile) == location.size) {
+            metrics.trace(location.container, RequestTrace.Event.FILE_SEEN, "already staged");
+            return inFile;
+        }
+
+        JsonObject jsObj = new JsonObject();
+        jsObj.addProperty("file_size", location.size);
+        jsObj.addProperty("parent_pid", StageTask.PID);
+        jsObj.addProperty("time", System.currentTimeMillis() / 1000);
+        jsObj.addProperty("storage_class", storageClass);
+        jsObj.addProperty("action", "recall");
+        jsObj.addProperty("priority", priority);
+        jsObj.addProperty("container", true);
+
+        publisher.publish(location.container, jsObj);
+        metrics.trace(location.container, RequestTrace.Event.REQUEST_WRITTEN);
+        return null;
+    }
+
+    @Override
+    public Path poll() throws IOException, InterruptedException, EnditException
+    {
+        String id = location.container;
+        EnditException failure = publisher.getFailure(id);
+        if (failure != null) {
+            metrics.trace(id, RequestTrace.Event.ERROR_READ, failure.getMessage());
+            throw failure;
+        }
+        Path inFile = inDir.resolve(id);
+        Path errorFile = requestDir.resolve(id + ".err");
+        if (EnditFiles.exists(errorFile)) {
+            List<String> lines;
+            try {
+                Thread.sleep(StageTask.ERROR_GRACE_PERIOD);
+                lines = EnditFiles.readAllLines(errorFile);
+            } finally {
+                EnditFiles.deleteIfExists(inFile);
+                EnditFiles.deleteIfExists(errorFile);
+                publisher.completed(id);
+            }
+            EnditException error = EnditException.create(lines);
+            metrics.trace(id, RequestTrace.Event.ERROR_READ, error.getMessage());
+            throw error;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = EnditFiles.readAttributes(inFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (attributes.isRegularFile() && attributes.size() == location.size) {
+            if (traced != RequestTrace.Event.INCOMPLETE) {
+                metrics.trace(id, RequestTrace.Event.FILE_SEEN, location.size + " bytes");
+                metrics.trace(id, RequestTrace.Event.GRACE, arrivalDetector.getStrategy().name().toLowerCase());
+            }
+            if (!arrivalDetector.isComplete(inFile, attributes)) {
+                traceChange(RequestTrace.Event.INCOMPLETE, "modified during the quiet period");
+                return null;
+            }
+            publisher.completed(id);
+            return inFile;
+        }
+        traceChange(RequestTrace.Event.SIZE_MISMATCH, attributes.size() + " of " + location.size + " bytes");
+        return null;
+    }
+
+    private void traceChange(RequestTrace.Event event, String detail)
+    {
+        if (traced != event) {
+            traced = event;
+            metrics.trace(location.container, event, detail);
+        }
+    }
+
+    @Override
+    public boolean abort() throws Exception
+    {
+        if (!publisher.withdraw(location.container)) {
+            return false;
+        }
+        metrics.trace(location.container, RequestTrace.Event.ABORTED);
+        return true;
+    }
+
+    @Override
+    public void cleanup() throws IOException
+    {
+        EnditFiles.deleteIfExists(requestDir.resolve(location.container + ".err"));
+        EnditFiles.deleteIfExists(inDir.resolve(location.container));
+    }
+}
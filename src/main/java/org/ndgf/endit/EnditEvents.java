@@ -0,0 +1,302 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Java Flight Recorder events of the request lifecycle.
+ *
+ * Events are only recorded while a flight recording with the events enabled is
+ * running, e.g. with <tt>jcmd &lt;pid&gt; JFR.start</tt>. All events are in the
+ * category <tt>dCache / Endit</tt>. File system calls are only counted for the
+ * events while a recording is running.
+ */
+final class EnditEvents
+{
+    /** Whether a recording is running. Guarded by EnditEvents.class. */
+    private static boolean recording;
+
+    static {
+        if (FlightRecorder.isAvailable()) {
+            FlightRecorder.addListener(new FlightRecorderListener()
+            {
+                @Override
+                public void recorderInitialized(FlightRecorder recorder)
+                {
+                    recordingsChanged(recorder);
+                }
+
+                @Override
+                public void recordingStateChanged(Recording ignored)
+                {
+                    recordingsChanged(FlightRecorder.getFlightRecorder());
+                }
+            });
+        }
+    }
+
+    private EnditEvents()
+    {
+    }
+
+    private static synchronized void recordingsChanged(FlightRecorder recorder)
+    {
+        boolean running = recorder.getRecordings().stream().anyMatch(r -> r.getState() == RecordingState.RUNNING);
+        if (running != recording) {
+            recording = running;
+            if (running) {
+                EnditFiles.startCounting();
+            } else {
+                EnditFiles.stopCounting();
+            }
+        }
+    }
+
+    @Name("org.ndgf.endit.Start")
+    @Label("Endit Request Start")
+    @Category({"dCache", "Endit"})
+    @Description("A task was started, i.e. its request was published to Endit")
+    static class StartEvent extends Event
+    {
+        @Label("PNFS ID")
+        String pnfsId;
+
+        @Label("Action")
+        String action;
+
+        @Label("Storage Class")
+        String storageClass;
+
+        @Label("File System Calls")
+        long fileSystemCalls;
+
+        @Label("Completed")
+        @Description("Whether the task completed without waiting for Endit")
+        boolean completed;
+    }
+
+    @Name("org.ndgf.endit.Poll")
+    @Label("Endit Poll")
+    @Category({"dCache", "Endit"})
+    @Description("A task was polled for completion")
+    static class PollEvent extends Event
+    {
+        @Label("PNFS ID")
+        String pnfsId;
+
+        @Label("File System Calls")
+        long fileSystemCalls;
+
+        @Label("Completed")
+        boolean completed;
+    }
+
+    @Name("org.ndgf.endit.Completion")
+    @Label("Endit Request Completion")
+    @Category({"dCache", "Endit"})
+    @Description("A task succeeded, failed or was cancelled")
+    static class CompletionEvent extends Event
+    {
+        @Label("PNFS ID")
+        String pnfsId;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Failure")
+        @Description("The failure of the task or null if it did not fail")
+        String failure;
+    }
+
+    @Name("org.ndgf.endit.Abort")
+    @Label("Endit Request Abort")
+    @Category({"dCache", "Endit"})
+    @Description("The request of a cancelled or failed task was withdrawn")
+    static class AbortEvent extends Event
+    {
+        @Label("PNFS ID")
+        String pnfsId;
+
+        @Label("File System Calls")
+        long fileSystemCalls;
+    }
+
+    @Name("org.ndgf.endit.WatcherOverflow")
+    @Label("Endit Watcher Overflow")
+    @Category({"dCache", "Endit"})
+    @Description("File events on the Endit directories of a nearline storage were lost")
+    static class WatcherOverflowEvent extends Event
+    {
+        @Label("Nearline Storage")
+        String storage;
+    }
+
+    @Name("org.ndgf.endit.PollAll")
+    @Label("Endit Poll All")
+    @Category({"dCache", "Endit"})
+    @Description("All tasks of a nearline storage were polled")
+    static class PollAllEvent extends Event
+    {
+        @Label("Nearline Storage")
+        String storage;
+
+        @Label("Tasks")
+        int tasks;
+
+        @Label("File System Calls")
+        long fileSystemCalls;
+    }
+
+    /**
+     * Starts the task and records the call as a start event.
+     */
+    static <V> V start(PollingTask<V> task, String action, String storageClass) throws Exception
+    {
+        StartEvent event = new StartEvent();
+        if (!event.isEnabled()) {
+            return MetadataBudget.publishing(task::start);
+        }
+        long calls = EnditFiles.calls();
+        event.begin();
+        V result = MetadataBudget.publishing(task::start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.pnfsId = task.getId();
+            event.action = action;
+            event.storageClass = storageClass;
+            event.fileSystemCalls = EnditFiles.calls() - calls;
+            event.completed = (result != null);
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Polls the task and records the call as a poll event.
+     */
+    static <V> V poll(PollingTask<V> task) throws Exception
+    {
+        PollEvent event = new PollEvent();
+        if (!event.isEnabled()) {
+            return task.poll();
+        }
+        long calls = EnditFiles.calls();
+        event.begin();
+        V result = null;
+        try {
+            result = task.poll();
+            return result;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.pnfsId = task.getId();
+                event.fileSystemCalls = EnditFiles.calls() - calls;
+                event.completed = (result != null);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Aborts the task and records the call as an abort event.
+     */
+    static boolean abort(PollingTask<?> task) throws Exception
+    {
+        AbortEvent event = new AbortEvent();
+        if (!event.isEnabled()) {
+            return task.abort();
+        }
+        long calls = EnditFiles.calls();
+        event.begin();
+        try {
+            return task.abort();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.pnfsId = task.getId();
+                event.fileSystemCalls = EnditFiles.calls() - calls;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Records the completion of a task. The failure is null if the task succeeded.
+     */
+    static void completed(PollingTask<?> task, Throwable failure)
+    {
+        CompletionEvent event = new CompletionEvent();
+        if (event.shouldCommit()) {
+            event.pnfsId = task.getId();
+            event.outcome = (failure == null) ? "success" : "failure";
+            event.failure = (failure == null) ? null : failure.toString();
+            event.commit();
+        }
+    }
+
+    static void cancelled(PollingTask<?> task)
+    {
+        CompletionEvent event = new CompletionEvent();
+        if (event.shouldCommit()) {
+            event.pnfsId = task.getId();
+            event.outcome = "cancelled";
+            event.commit();
+        }
+    }
+
+    static void overflow(String storage)
+    {
+        WatcherOverflowEvent event = new WatcherOverflowEvent();
+        if (event.shouldCommit()) {
+            event.storage = storage;
+            event.commit();
+        }
+    }
+
+    /**
+     * Polls all tasks with the given poll action and records the sweep as a poll all event.
+     */
+    static <T> void pollAll(String storage, Collection<T> tasks, Consumer<T> poll)
+    {
+        PollAllEvent event = new PollAllEvent();
+        long calls = EnditFiles.calls();
+        event.begin();
+        for (T task : tasks) {
+            poll.accept(task);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.storage = storage;
+            event.tasks = tasks.size();
+            event.fileSystemCalls = EnditFiles.calls() - calls;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * File system operations of the provider.
+ *
+ * Thin wrappers around {@link Files} that count the calls made by the current
+ * thread, allowing the file system cost of individual polls and aborts to be
+ * reported. Calls are only counted while counting is enabled, e.g. while a
+ * flight recording is running, so the counters cost nothing otherwise. Every
+ * call first waits for the metadata budget.
+ */
+final class EnditFiles
+{
+    private static final ThreadLocal<long[]> CALLS = ThreadLocal.withInitial(() -> new long[1]);
+    private static final LongAdder TOTAL = new LongAdder();
+    private static final AtomicInteger COUNTING = new AtomicInteger();
+
+    private EnditFiles()
+    {
+    }
+
+    /**
+     * Enables counting of calls until a matching call to {@link #stopCounting}.
+     */
+    static void startCounting()
+    {
+        COUNTING.incrementAndGet();
+    }
+
+    static void stopCounting()
+    {
+        COUNTING.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of file system calls made by the current thread so far
+     * while counting was enabled.
+     */
+    static long calls()
+    {
+        return CALLS.get()[0];
+    }
+
+    /**
+     * Returns the number of file system calls made by all threads so far while
+     * counting was enabled.
+     */
+    static long totalCalls()
+    {
+        return TOTAL.sum();
+    }
+
+    private static void count(MetadataBudget.Kind kind)
+    {
+        MetadataBudget.acquire(kind);
+        if (COUNTING.get() > 0) {
+            CALLS.get()[0]++;
+            TOTAL.increment();
+        }
+    }
+
+    static boolean exists(Path path)
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.exists(path);
+    }
+
+    static boolean isRegularFile(Path path)
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.isRegularFile(path);
+    }
+
+    static long size(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.size(path);
+    }
+
+    static BasicFileAttributes readAttributes(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    static boolean deleteIfExists(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.UNLINK);
+        return Files.deleteIfExists(path);
+    }
+
+    static void move(Path source, Path target, CopyOption... options) throws IOException
+    {
+        count(MetadataBudget.Kind.RENAME);
+        Files.move(source, target, options);
+    }
+
+    static void createLink(Path link, Path existing) throws IOException
+    {
+        count(MetadataBudget.Kind.LINK);
+        Files.createLink(link, existing);
+    }
+
+    static List<String> readAllLines(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+    }
+
+    static void write(Path path, String content, OpenOption... options) throws IOException
+    {
+        count(MetadataBudget.Kind.CREATE);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8), options);
+    }
+
+    /**
+     * Opens a channel; accounted as creating a file if the options allow creating one.
+     */
+    static FileChannel open(Path path, OpenOption... options) throws IOException
+    {
+        boolean create = false;
+        for (OpenOption option : options) {
+            create |= option == StandardOpenOption.CREATE || option == StandardOpenOption.CREATE_NEW;
+        }
+        count(create ? MetadataBudget.Kind.CREATE : MetadataBudget.Kind.STAT);
+        return FileChannel.open(path, options);
+    }
+
+    /**
+     * Forces the content and metadata of the file or directory of the channel to disk.
+     */
+    static void force(FileChannel channel) throws IOException
+    {
+        count(MetadataBudget.Kind.SYNC);
+        channel.force(true);
+    }
+
+    static BufferedReader newBufferedReader(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    }
+
+    static FileStore getFileStore(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.getFileStore(path);
+    }
+
+    static boolean isDirectory(Path path)
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.isDirectory(path);
+    }
+
+    static void createDirectories(Path path) throws IOException
+    {
+        count(MetadataBudget.Kind.CREATE);
+        Files.createDirectories(path);
+    }
+
+    static DirectoryStream<Path> newDirectoryStream(Path dir, String glob) throws IOException
+    {
+        count(MetadataBudget.Kind.STAT);
+        return Files.newDirectoryStream(dir, glob);
+    }
+}
@@ -0,0 +1,315 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+/**
+ * Latency histograms, request counters and the request trace of an Endit nearline
+ * storage.
+ *
+ * Exposed through JMX as <tt>org.ndgf.endit:type=NearlineStorage,name=&lt;name&gt;</tt>
+ * and periodically summarized in the log.
+ */
+class EnditMetrics implements EnditMetricsMXBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnditMetrics.class);
+
+    private static final int TRACE_SIZE = 65536;
+
+    /**
+     * The phases of nearline requests for which latencies are recorded.
+     */
+    enum Phase
+    {
+        /** Activation of a request by the pool. */
+        ACTIVATE("activate"),
+        /** Space allocation for a stage. */
+        ALLOCATE("allocate"),
+        /** Starting a task, i.e. publishing the request to Endit. */
+        PUBLISH("publish"),
+        /** Time from publishing a request until the task completes. */
+        ENDIT_QUEUE("endit-queue"),
+        /** Time from the last modification of a staged file until it was noticed. */
+        DETECTION_LAG("detection-lag"),
+        /** Time spent waiting for a staged file of the expected size to be complete. */
+        GRACE("grace"),
+        /** Moving a staged file into the pool. */
+        MOVE("move"),
+        /** Total time of a flush. */
+        FLUSH("flush"),
+        /** Total time of a stage. */
+        STAGE("stage"),
+        /** Total time of a remove. */
+        REMOVE("remove");
+
+        private final String label;
+
+        Phase(String label)
+        {
+            this.label = label;
+        }
+    }
+
+    private final String name;
+    private final List<Stage> stages;
+    private final Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+    private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+    private final RequestTrace trace = new RequestTrace(TRACE_SIZE);
+    private volatile boolean stalled;
+    private ObjectName objectName;
+
+    EnditMetrics(String name, Stage... stages)
+    {
+        this.name = name;
+        this.stages = List.of(stages);
+        for (Phase phase : Phase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+        }
+    }
+
+    public LatencyHistogram get(Phase phase)
+    {
+        return latencies.get(phase);
+    }
+
+    public void setStalled(boolean stalled)
+    {
+        this.stalled = stalled;
+    }
+
+    @Override
+    public boolean isStalled()
+    {
+        return stalled;
+    }
+
+    public void trace(String id, RequestTrace.Event event)
+    {
+        trace.record(id, event);
+    }
+
+    public void trace(String id, RequestTrace.Event event, String detail)
+    {
+        trace.record(id, event, detail);
+    }
+
+    /**
+     * Starts tracking a request of the given operation and storage class.
+     */
+    public Tracker begin(Phase operation, String storageClass)
+    {
+        String key = (storageClass == null) ? operation.label : operation.label + " " + storageClass;
+        return new Tracker(operation, counters.computeIfAbsent(key, k -> new Counters()));
+    }
+
+    /**
+     * Tracks the phases of a single request.
+     */
+    class Tracker
+    {
+        private final Phase operation;
+        private final Counters counters;
+        private final long start = System.nanoTime();
+
+        private Tracker(Phase operation, Counters counters)
+        {
+            this.operation = operation;
+            this.counters = counters;
+            counters.inFlight.increment();
+        }
+
+        /**
+         * Records the time from now until the given future completes as the given phase.
+         */
+        public <T> ListenableFuture<T> time(Phase phase, ListenableFuture<T> future)
+        {
+            long begin = System.nanoTime();
+            future.addListener(() -> latencies.get(phase).recordSince(begin), MoreExecutors.directExecutor());
+            return future;
+        }
+
+        /**
+         * Records the outcome and total time of the request once the given future completes.
+         */
+        public <T> ListenableFuture<T> end(ListenableFuture<T> future)
+        {
+            future.addListener(() -> {
+                counters.inFlight.decrement();
+                latencies.get(operation).recordSince(start);
+                try {
+                    getUninterruptibly(future);
+                    counters.completed.increment();
+                } catch (CancellationException e) {
+                    counters.cancelled.increment();
+                } catch (ExecutionException e) {
+                    counters.failed.increment();
+                }
+            }, MoreExecutors.directExecutor());
+            return future;
+        }
+    }
+
+    private static class Counters
+    {
+        final LongAdder inFlight = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder cancelled = new LongAdder();
+    }
+
+    @Override
+    public Map<String, String> getLatencies()
+    {
+        Map<String, String> map = new TreeMap<>();
+        latencies.forEach((phase, histogram) -> map.put(phase.label, histogram.toString()));
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getCounters()
+    {
+        Map<String, Long> map = new TreeMap<>();
+        counters.forEach((key, c) -> {
+            map.put(key + " in-flight", c.inFlight.sum());
+            map.put(key + " completed", c.completed.sum());
+            map.put(key + " failed", c.failed.sum());
+            map.put(key + " cancelled", c.cancelled.sum());
+        });
+        return map;
+    }
+
+    @Override
+    public Map<String, String> getStages()
+    {
+        Map<String, String> map = new TreeMap<>();
+        for (Stage stage : stages) {
+            map.put(stage.getName(), stage.toString());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getThrottled()
+    {
+        Map<String, Long> map = new TreeMap<>();
+        MetadataBudget.getThrottled().forEach((kind, millis) -> map.put(kind.name().toLowerCase(), millis));
+        return map;
+    }
+
+    @Override
+    public String getSummary()
+    {
+        List<String> parts = new ArrayList<>();
+        if (stalled) {
+            parts.add("Endit stalled");
+        }
+        new TreeMap<>(counters).forEach((key, c) ->
+                parts.add(String.format("%s: %d in flight, %d completed, %d failed, %d cancelled", key,
+                                        c.inFlight.sum(), c.completed.sum(), c.failed.sum(), c.cancelled.sum())));
+        latencies.forEach((phase, histogram) -> {
+            if (histogram.getCount() > 0) {
+                parts.add(phase.label + ": " + histogram);
+            }
+        });
+        for (Stage stage : stages) {
+            parts.add(stage.toString());
+        }
+        getThrottled().forEach((kind, millis) -> {
+            if (millis > 0) {
+                parts.add(kind + " throttled " + millis + " ms");
+            }
+        });
+        return String.join("; ", parts);
+    }
+
+    @Override
+    public List<String> dumpTrace()
+    {
+        return trace.dump();
+    }
+
+    @Override
+    public List<String> dumpTrace(String pnfsId)
+    {
+        return trace.dump(pnfsId);
+    }
+
+    public void log()
+    {
+        LOGGER.info("[{}] {}", name, getSummary());
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. If several nearline
+     * storages share a name, an instance number is added to the object name.
+     */
+    public synchronized void register()
+    {
+        if (objectName != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String base = "org.ndgf.endit:type=NearlineStorage,name=" + ObjectName.quote(name);
+            for (int instance = 0; objectName == null; instance++) {
+                ObjectName candidate = new ObjectName((instance == 0) ? base : base + ",instance=" + instance);
+                try {
+                    server.registerMBean(this, candidate);
+                    objectName = candidate;
+                } catch (InstanceAlreadyExistsException ignored) {
+                }
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register metrics of {} with JMX: {}", name, e.toString());
+        }
+    }
+
+    public synchronized void unregister()
+    {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.warn("Failed to unregister metrics of {} from JMX: {}", name, e.toString());
+            }
+            objectName = null;
+        }
+    }
+}
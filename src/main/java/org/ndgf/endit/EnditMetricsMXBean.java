@@ -0,0 +1,51 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of an Endit nearline storage.
+ */
+public interface EnditMetricsMXBean
+{
+    /** Latency summaries by phase. */
+    Map<String, String> getLatencies();
+
+    /** Request counters by operation and storage class. */
+    Map<String, Long> getCounters();
+
+    /** Thread pool statistics by stage. */
+    Map<String, String> getStages();
+
+    /** Time in milliseconds file system operations waited for the metadata budget, by kind. */
+    Map<String, Long> getThrottled();
+
+    /** Whether Endit has stopped making progress on queued requests. */
+    boolean isStalled();
+
+    /** One line summary as written to the log. */
+    String getSummary();
+
+    /** The most recent lifecycle events of all requests, oldest first. */
+    List<String> dumpTrace();
+
+    /** The most recent lifecycle events of the request for the given pnfsid, oldest first. */
+    List<String> dumpTrace(String pnfsId);
+}
@@ -0,0 +1,68 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Publishes every request as a file named by the pnfsid in the request directory.
+ *
+ * This is the classic Endit protocol. Failures are reported by Endit through
+ * error files, which are handled by the tasks themselves.
+ */
+class FileRequestPublisher implements RequestPublisher
+{
+    private final Path requestDir;
+
+    FileRequestPublisher(Path requestDir)
+    {
+        this.requestDir = requestDir;
+    }
+
+    @Override
+    public void publish(String id, JsonObject request) throws IOException
+    {
+        EnditFiles.write(requestDir.resolve(id), request.toString());
+    }
+
+    @Override
+    public void completed(String id) throws IOException
+    {
+        EnditFiles.deleteIfExists(requestDir.resolve(id));
+    }
+
+    @Override
+    public boolean withdraw(String id) throws IOException
+    {
+        return EnditFiles.deleteIfExists(requestDir.resolve(id));
+    }
+
+    @Override
+    public EnditException getFailure(String id)
+    {
+        return null;
+    }
+
+    @Override
+    public void shutdown()
+    {
+    }
+}
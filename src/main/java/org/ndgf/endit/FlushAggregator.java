@@ -0,0 +1,460 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.dcache.pool.nearline.spi.FlushRequest;
+
+/**
+ * Packs small files of the same storage class into containers.
+ *
+ * Flushes of files below the threshold are collected per storage class. A batch
+ * is sealed once it reaches the container size or once its oldest member has
+ * waited for the maximum delay. The members are then copied into a container
+ * file in the container directory and the container is handed to the flusher.
+ * Once the container is on tape, every member completes with a URI recording its
+ * location in the container.
+ *
+ * The container ends with a trailer indexing its members, so that a container
+ * read back from tape describes itself. The trailer has one line "pnfsid offset
+ * length" per member, followed by a line of exactly {@link #FOOTER_LENGTH} bytes
+ * "endit-index n", where n is the length of the member lines in bytes.
+ *
+ * The members are also recorded next to the container, see {@link ContainerMembers}.
+ * Containers an earlier run left in the container or out directory are resumed
+ * by {@link #reconcile}, and the flushes of their members submitted again by the
+ * pool complete with the container.
+ */
+class FlushAggregator
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlushAggregator.class);
+
+    static final int FOOTER_LENGTH = 32;
+
+    private static final String FOOTER_FORMAT = "endit-index %19d\n";
+
+    /**
+     * Migrates a container from the container directory.
+     */
+    interface Flusher
+    {
+        ListenableFuture<?> flush(String id, long size, String storageClass);
+    }
+
+    private final String type;
+    private final String name;
+    private final Flusher flusher;
+    private final Consumer<String> trash;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile Path containerDir;
+    private volatile long threshold;
+    private volatile long containerSize;
+    private volatile long maxDelay;
+
+    /** Batches not yet sealed, by storage class. Guarded by this. */
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /** Members of containers resumed from an earlier run, by pnfsid. Guarded by this. */
+    private final Map<String, Resumed> resumed = new HashMap<>();
+
+    private final ContainerMembers containerMembers = new ContainerMembers();
+
+    /**
+     * @param flusher migrates sealed containers
+     * @param trash tells Endit to remove a container without live members from tape
+     * @param executor copies the members into containers
+     */
+    FlushAggregator(String type, String name, Flusher flusher, Consumer<String> trash, Executor executor,
+                    ScheduledExecutorService scheduler)
+    {
+        this.type = type;
+        this.name = name;
+        this.flusher = flusher;
+        this.trash = trash;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param containerDir directory in which containers are written
+     * @param threshold files smaller than this many bytes are aggregated; 0 disables aggregation
+     * @param containerSize size in bytes at which a container is sealed
+     * @param maxDelay maximum time in milliseconds a file waits before its container is sealed
+     */
+    void configure(Path containerDir, long threshold, long containerSize, long maxDelay)
+    {
+        this.containerDir = containerDir;
+        containerMembers.configure(containerDir);
+        this.threshold = threshold;
+        this.containerSize = containerSize;
+        this.maxDelay = maxDelay;
+    }
+
+    boolean accepts(FlushRequest request)
+    {
+        return request.getFileAttributes().getSize() < threshold;
+    }
+
+    ListenableFuture<Set<URI>> add(FlushRequest request)
+    {
+        String storageClass = request.getFileAttributes().getStorageClass();
+        String pnfsId = request.getFileAttributes().getPnfsId().toString();
+        Member member = new Member(request);
+        Batch sealed = null;
+        synchronized (this) {
+            Resumed packed = resumed.remove(pnfsId);
+            if (packed != null) {
+                return Futures.transformAsync(packed.flushed,
+                                              ignored -> Futures.immediateFuture(
+                                                      Collections.singleton(packed.location.toUri(type, name, pnfsId))),
+                                              MoreExecutors.directExecutor());
+            }
+            Batch batch = batches.get(storageClass);
+            if (batch == null) {
+                Batch created = new Batch(storageClass);
+                created.timer = scheduler.schedule(() -> seal(created), maxDelay, TimeUnit.MILLISECONDS);
+                batches.put(storageClass, created);
+                batch = created;
+            }
+            batch.members.add(member);
+            batch.size += request.getFileAttributes().getSize();
+            if (batch.size >= containerSize) {
+                batches.remove(storageClass);
+                batch.timer.cancel(false);
+                sealed = batch;
+            }
+        }
+        if (sealed != null) {
+            Batch batch = sealed;
+            executor.execute(() -> write(batch));
+        }
+        return member.future;
+    }
+
+    /**
+     * Resumes the containers written by an earlier run. A container still in the
+     * container or out directory is flushed again; one that is gone was migrated
+     * by Endit while the pool was down. Containers whose members were never
+     * recorded are deleted, as the pool submits the flushes of their members again.
+     */
+    void reconcile(Path outDir)
+    {
+        Path containerDir = this.containerDir;
+        if (!EnditFiles.isDirectory(containerDir)) {
+            return;
+        }
+        try {
+            Set<String> known = new HashSet<>();
+            for (ContainerMembers.Container container : containerMembers.pending()) {
+                known.add(container.id);
+                ListenableFuture<?> flushed;
+                if (EnditFiles.exists(containerDir.resolve(container.id))
+                    || EnditFiles.exists(outDir.resolve(container.id))) {
+                    LOGGER.info("[{}] Resuming flush of container {} with {} files.",
+                                name, container.id, container.members.size());
+                    flushed = flusher.flush(container.id, container.size, container.storageClass);
+                } else {
+                    flushed = Futures.immediateFuture(container.id);
+                }
+                /* Members complete once the flush is recorded, so that their removal finds the record. */
+                SettableFuture<Object> recorded = SettableFuture.create();
+                synchronized (this) {
+                    container.members.forEach((pnfsId, location) -> resumed.put(pnfsId, new Resumed(location, recorded)));
+                }
+                flushed.addListener(() -> resumed(container, flushed, recorded), executor);
+            }
+            try (DirectoryStream<Path> paths = EnditFiles.newDirectoryStream(containerDir, "*")) {
+                for (Path path : paths) {
+                    String file = path.getFileName().toString();
+                    if (!file.endsWith(ContainerMembers.PENDING) && !file.endsWith(ContainerMembers.MEMBERS)
+                        && !known.contains(file)) {
+                        EnditFiles.deleteIfExists(path);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("[{}] Failed to reconcile containers: {}", name, e.toString());
+        }
+    }
+
+    private void resumed(ContainerMembers.Container container, ListenableFuture<?> flushed,
+                         SettableFuture<Object> recorded)
+    {
+        try {
+            Futures.getDone(flushed);
+        } catch (ExecutionException e) {
+            failed(container, recorded, e.getCause());
+            return;
+        } catch (CancellationException e) {
+            failed(container, recorded, e);
+            return;
+        }
+        record(container.id);
+        recorded.set(container.id);
+    }
+
+    private void failed(ContainerMembers.Container container, SettableFuture<Object> recorded, Throwable cause)
+    {
+        /* Members not submitted yet are packed again. */
+        synchronized (this) {
+            resumed.keySet().removeAll(container.members.keySet());
+        }
+        abandon(container.id);
+        recorded.setException(cause);
+    }
+
+    /**
+     * Strikes off a member of a container removed from dCache.
+     *
+     * @return true if the container has no live members left and may be removed from tape
+     */
+    boolean remove(ContainerLocation location, String pnfsId) throws IOException
+    {
+        return containerMembers.remove(location.container, pnfsId);
+    }
+
+    /**
+     * Fails the members of all batches not yet sealed.
+     */
+    synchronized void shutdown()
+    {
+        for (Batch batch : batches.values()) {
+            batch.timer.cancel(false);
+            for (Member member : batch.members) {
+                member.future.setException(new IllegalStateException("Nearline storage has been shut down."));
+            }
+        }
+        batches.clear();
+        resumed.clear();
+    }
+
+    private void seal(Batch batch)
+    {
+        synchronized (this) {
+            if (!batches.remove(batch.storageClass, batch)) {
+                return;
+            }
+        }
+        executor.execute(() -> write(batch));
+    }
+
+    private void write(Batch batch)
+    {
+        /* Container ids look like pnfsids, so Endit handles containers like any other file. */
+        String id = "0000" + UUID.randomUUID().toString().replace("-", "").toUpperCase();
+        Path containerDir = this.containerDir;
+        Path file = containerDir.resolve(id);
+        List<Member> members = new ArrayList<>();
+        StringBuilder index = new StringBuilder();
+        long size = 0;
+        try {
+            try (FileChannel out = EnditFiles.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (Member member : batch.members) {
+                    if (member.future.isDone()) {
+                        continue;
+                    }
+                    try (FileChannel in = EnditFiles.open(member.request.getFile().toPath(), StandardOpenOption.READ)) {
+                        long length = in.size();
+                        long position = 0;
+                        while (position < length) {
+                            long count = in.transferTo(position, length - position, out);
+                            if (count == 0) {
+                                throw new IOException(member.request.getFile() + " is truncated.");
+                            }
+                            position += count;
+                        }
+                        member.offset = size;
+                        member.length = length;
+                        size += length;
+                    }
+                    members.add(member);
+                    index.append(member.request.getFileAttributes().getPnfsId()).append(' ')
+                            .append(member.offset).append(' ').append(member.length).append('\n');
+                }
+                byte[] lines = index.toString().getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer trailer = ByteBuffer.allocate(lines.length + FOOTER_LENGTH);
+                trailer.put(lines).put(String.format(FOOTER_FORMAT, lines.length).getBytes(StandardCharsets.US_ASCII));
+                trailer.flip();
+                while (trailer.hasRemaining()) {
+                    size += out.write(trailer);
+                }
+                EnditFiles.force(out);
+            }
+            Map<String, ContainerLocation> locations = new LinkedHashMap<>();
+            for (Member member : members) {
+                locations.put(member.request.getFileAttributes().getPnfsId().toString(),
+                              new ContainerLocation(id, member.offset, member.length, size));
+            }
+            containerMembers.create(new ContainerMembers.Container(id, batch.storageClass, size, locations));
+        } catch (IOException e) {
+            LOGGER.warn("[{}] Failed to write container {}: {}", name, id, e.toString());
+            try {
+                EnditFiles.deleteIfExists(file);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            for (Member member : batch.members) {
+                member.future.setException(e);
+            }
+            return;
+        }
+
+        LOGGER.debug("[{}] Packed {} files of {} into container {} of {} bytes.",
+                     name, members.size(), batch.storageClass, id, size);
+        long containerSize = size;
+        Futures.addCallback(flusher.flush(id, containerSize, batch.storageClass), new FutureCallback<Object>()
+        {
+            @Override
+            public void onSuccess(Object result)
+            {
+                /* Recorded before the members complete, so that their removal finds the record. */
+                record(id);
+                List<String> dead = new ArrayList<>();
+                for (Member member : members) {
+                    String pnfsId = member.request.getFileAttributes().getPnfsId().toString();
+                    try {
+                        ContainerLocation location = new ContainerLocation(id, member.offset, member.length, containerSize);
+                        if (!member.future.set(Collections.singleton(location.toUri(type, name, pnfsId)))) {
+                            dead.add(pnfsId);
+                        }
+                    } catch (URISyntaxException e) {
+                        member.future.setException(e);
+                        dead.add(pnfsId);
+                    }
+                }
+                for (String pnfsId : dead) {
+                    remove(id, pnfsId);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                for (Member member : members) {
+                    member.future.setException(t);
+                }
+                abandon(id);
+            }
+        }, executor);
+    }
+
+    private void record(String id)
+    {
+        try {
+            containerMembers.flushed(id);
+        } catch (IOException e) {
+            LOGGER.warn("[{}] Failed to record flush of container {}: {}", name, id, e.toString());
+        }
+    }
+
+    /**
+     * Strikes off a member the pool gave up on while its container was being flushed.
+     */
+    private void remove(String id, String pnfsId)
+    {
+        try {
+            if (containerMembers.remove(id, pnfsId)) {
+                trash.accept(id);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("[{}] Failed to strike {} off container {}: {}", name, pnfsId, id, e.toString());
+        }
+    }
+
+    private void abandon(String id)
+    {
+        try {
+            containerMembers.abandon(id);
+        } catch (IOException e) {
+            LOGGER.warn("[{}] Failed to forget container {}: {}", name, id, e.toString());
+        }
+    }
+
+    private static class Batch
+    {
+        final String storageClass;
+        final List<Member> members = new ArrayList<>();
+        long size;
+        ScheduledFuture<?> timer;
+
+        Batch(String storageClass)
+        {
+            this.storageClass = storageClass;
+        }
+    }
+
+    private static class Resumed
+    {
+        final ContainerLocation location;
+        final ListenableFuture<?> flushed;
+
+        Resumed(ContainerLocation location, ListenableFuture<?> flushed)
+        {
+            this.location = location;
+            this.flushed = flushed;
+        }
+    }
+
+    private static class Member
+    {
+        final FlushRequest request;
+        final SettableFuture<Set<URI>> future = SettableFuture.create();
+        long offset;
+        long length;
+
+        Member(FlushRequest request)
+        {
+            this.request = request;
+        }
+    }
+}
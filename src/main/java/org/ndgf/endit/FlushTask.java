@@ -17,111 +17,129 @@
  */
 package org.ndgf.endit;
 
-import java.nio.charset.StandardCharsets;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.dcache.pool.nearline.spi.FlushRequest;
 
-import diskCacheV111.util.PnfsId;
-
-import static java.util.Arrays.asList;
-
 import org.dcache.util.Checksum;
+import org.dcache.vehicles.FileAttributes;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.JsonObject;
-import org.apache.commons.io.FileUtils;
 
 class FlushTask implements PollingTask<Set<URI>>
 {
-    private final Path outFile;
-    private final File file;
-    private final PnfsId pnfsId;
+    private final FlushRequest request;
+    private final RequestPublisher publisher;
+    private final Path outDir;
     private final String type;
     private final String name;
-    private final Path requestFile;
-    private final long size;
-    private final String storageClass;
-    private final String path;
-    
-    private final Set<Checksum> checksums;
+    private final String id;
+    private final EnditMetrics metrics;
+    private final SettableFuture<Boolean> withdrawn = SettableFuture.create();
+    /** Whether the request has been published. Guarded by this. */
+    private boolean started;
+    /** Whether the task was cancelled before it started. Guarded by this. */
+    private boolean preempted;
 
     private final static Logger LOGGER = LoggerFactory.getLogger(FlushTask.class);
 
-    public FlushTask(FlushRequest request, Path requestDir, Path outDir, String type, String name)
+    public FlushTask(FlushRequest request, RequestPublisher publisher, Path outDir, String type, String name,
+                     EnditMetrics metrics)
     {
+        this.request = request;
         this.type = type;
         this.name = name;
-        file = request.getFile();
-        outFile = outDir.resolve(file.getName());
-        pnfsId = request.getFileAttributes().getPnfsId();
-        requestFile = requestDir.resolve(pnfsId.toString());
-        size = request.getFileAttributes().getSize();
-        storageClass =request.getFileAttributes().getStorageClass();
-        path = request.getFileAttributes().getStorageInfo().getMap().get("path");
-        checksums = request.getFileAttributes().getChecksums();
+        this.publisher = publisher;
+        this.outDir = outDir;
+        this.metrics = metrics;
+        id = request.getFileAttributes().getPnfsId().toString();
+        metrics.trace(id, RequestTrace.Event.CREATED, "flush");
+    }
+
+    @Override
+    public String getId()
+    {
+        return id;
     }
 
-    public List<Path> getFilesToWatch()
+    @Override
+    public Action getAction()
     {
-        return asList(outFile);
+        return Action.MIGRATE;
     }
 
     @Override
     public Set<URI> start() throws IOException
     {
+        synchronized (this) {
+            if (preempted) {
+                throw new CancellationException("Flush of " + id + " was cancelled before it started.");
+            }
+            started = true;
+        }
+        FileAttributes fileAttributes = request.getFileAttributes();
         String checksumType="";
         String checksumValue="";
 
-        for (Checksum checksum: checksums) {
+        for (Checksum checksum: fileAttributes.getChecksums()) {
             checksumType = checksum.getType().getName().toLowerCase();
             checksumValue = checksum.getValue();           
         }
 
 
         JsonObject jsObj = new JsonObject();
-        jsObj.addProperty("file_size", size);
+        jsObj.addProperty("file_size", fileAttributes.getSize());
         jsObj.addProperty("time", System.currentTimeMillis() / 1000);
-        jsObj.addProperty("storage_class", storageClass);
+        jsObj.addProperty("storage_class", fileAttributes.getStorageClass());
         jsObj.addProperty("action", "migrate");
-        jsObj.addProperty("path", path);
+        jsObj.addProperty("path", fileAttributes.getStorageInfo().getMap().get("path"));
         jsObj.addProperty("checksumType", checksumType);
         jsObj.addProperty("checksumValue", checksumValue);
-    	
-        FileUtils.write(requestFile.toFile(), jsObj.toString(),  StandardCharsets.UTF_8);
-         
+
+        publisher.publish(id, jsObj);
+
+        File file = request.getFile();
         try {
-            Files.createLink(outFile, file.toPath());
+            EnditFiles.createLink(outDir.resolve(file.getName()), file.toPath());
         } catch (FileAlreadyExistsException ignored) {
         }
+        metrics.trace(id, RequestTrace.Event.REQUEST_WRITTEN);
         return null;
     }
 
     @Override
-    public Set<URI> poll() throws URISyntaxException, IOException
+    public Set<URI> poll() throws URISyntaxException, IOException, EnditException
     {
-        if (!Files.exists(outFile)) {
+        EnditException failure = publisher.getFailure(id);
+        if (failure != null) {
+            metrics.trace(id, RequestTrace.Event.ERROR_READ, failure.getMessage());
+            throw failure;
+        }
+        if (!EnditFiles.exists(outFile())) {
            LOGGER.debug("File " + name + " deleted");
-           URI uri = new URI(type, name, null, "bfid=" + pnfsId.toString(), null);
+           metrics.trace(id, RequestTrace.Event.FILE_SEEN, "removed from out");
+           URI uri = new URI(type, name, null, "bfid=" + id, null);
            // URI format: hsmType://hsmInstance/?store=storename&group=groupname&bfid=bfid  
            // <hsmType>: The type of the Tertiary Storage System  
            // <hsmInstance>: The name of the instance  
            // <storename> and <groupname> : The store and group name of the file as provided by the arguments to this executable.  
            // <bfid>: The unique identifier needed to restore or remove the file if necessary.   
            LOGGER.debug("Send back uri: " + uri.toString());
-           Files.deleteIfExists(requestFile);
+           publisher.completed(id);
            
 	   return Collections.singleton(uri);
         }
@@ -131,6 +149,54 @@ class FlushTask implements PollingTask<Set<URI>>
     @Override
     public boolean abort() throws IOException
     {
-       return Files.deleteIfExists(outFile) && Files.deleteIfExists(requestFile);
+       boolean aborted = false;
+       try {
+           aborted = EnditFiles.deleteIfExists(outFile()) && publisher.withdraw(id);
+           if (aborted) {
+               metrics.trace(id, RequestTrace.Event.ABORTED);
+           }
+           return aborted;
+       } finally {
+           withdrawn.set(aborted);
+       }
+    }
+
+    /**
+     * Prevents the task from starting, unless it already has.
+     *
+     * @return true if the request will never be published to Endit
+     */
+    synchronized boolean preempt()
+    {
+        if (!started) {
+            preempted = true;
+        }
+        return preempted;
+    }
+
+    /**
+     * Marks the task as settled without having been aborted, i.e. it completed,
+     * failed without a withdrawal or could not be started. Has no effect if the
+     * task was aborted.
+     */
+    void settled()
+    {
+        withdrawn.set(false);
+    }
+
+    /**
+     * Completes once the task has been aborted or has otherwise settled, with true
+     * if the file was withdrawn from the out directory. Endit may still have copied
+     * the file before the withdrawal, so only {@link #preempt} guarantees that the
+     * file is not on tape.
+     */
+    ListenableFuture<Boolean> withdrawn()
+    {
+        return withdrawn;
+    }
+
+    private Path outFile()
+    {
+        return outDir.resolve(request.getFile().getName());
     }
 }
@@ -0,0 +1,424 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Maintains an append-only index of the pending requests next to the request
+ * directory, so that Endit can read the changes to its queue rather than list
+ * and parse the request and out directories.
+ *
+ * Decorates the publisher actually used for the requests. The index holds one
+ * JSON object per line. The first line is a header with the generation of the
+ * index. Every published request appends a line with the op <tt>add</tt> and the
+ * pnfsid, action, size, storage class, path and time of the request, and every
+ * completed or withdrawn request a line with the op <tt>remove</tt>.
+ *
+ * The index is compacted periodically by atomically replacing it with a new
+ * generation holding only the pending requests. A reader that finds a new
+ * generation has to reread the index from the start.
+ *
+ * Lines are queued by the callers and written by a single writer on the given
+ * executor, so publishing never waits for the index. Only the pnfsids of the
+ * pending requests are kept in memory; compaction copies their lines from the
+ * current generation of the index.
+ */
+class IndexingRequestPublisher implements RequestPublisher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexingRequestPublisher.class);
+
+    static final String INDEX_NAME = "queue.index";
+
+    private static final String[] FIELDS = { "action", "file_size", "storage_class", "path", "time" };
+
+    private final RequestPublisher publisher;
+    private final Path file;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> timer;
+
+    /** Pnfsids of pending requests. Guarded by this. */
+    private final Set<String> pending = new HashSet<>();
+
+    /** Lines not yet written, in the order of their changes. */
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+
+    /** Whether the writer is queued or running. */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    private volatile boolean compactDue;
+    private volatile boolean closed;
+
+    /* The remaining fields are confined to the writer. */
+
+    /** Number of lines in the index. */
+    private long lines;
+
+    /** Lines that failed to be appended, to be written by the next compaction. */
+    private final List<String> unwritten = new ArrayList<>();
+
+    /** Generation of the index and the channel appending to it. */
+    private long generation = System.currentTimeMillis();
+    private FileChannel channel;
+
+    /**
+     * @param publisher publisher of the requests
+     * @param dir Endit directory in which the index is kept
+     * @param compactInterval time in milliseconds between compactions
+     * @param executor executor of the writer
+     * @param scheduler scheduler of the compactions
+     */
+    IndexingRequestPublisher(RequestPublisher publisher, Path dir, long compactInterval,
+                             Executor executor, ScheduledExecutorService scheduler) throws IOException
+    {
+        this.publisher = publisher;
+        this.file = dir.resolve(INDEX_NAME);
+        this.executor = executor;
+        this.scheduler = scheduler;
+        rewrite();
+        setCompactInterval(compactInterval);
+    }
+
+    /**
+     * Returns the publisher of the requests.
+     */
+    RequestPublisher getPublisher()
+    {
+        return publisher;
+    }
+
+    public synchronized void setCompactInterval(long compactInterval)
+    {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        timer = scheduler.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Has the writer compact the index once it has written the queued lines.
+     */
+    void compact()
+    {
+        compactDue = true;
+        write();
+    }
+
+    @Override
+    public void publish(String id, JsonObject request) throws IOException
+    {
+        publisher.publish(id, request);
+        JsonObject line = new JsonObject();
+        line.addProperty("op", "add");
+        line.addProperty("pnfsid", id);
+        for (String field : FIELDS) {
+            JsonElement value = request.get(field);
+            if (value != null) {
+                line.add(field, value);
+            }
+        }
+        String entry = line.toString();
+        synchronized (this) {
+            pending.add(id);
+            queue.add(entry);
+        }
+        write();
+    }
+
+    @Override
+    public void completed(String id) throws IOException
+    {
+        publisher.completed(id);
+        remove(id);
+    }
+
+    @Override
+    public boolean withdraw(String id) throws IOException
+    {
+        boolean withdrawn = publisher.withdraw(id);
+        remove(id);
+        return withdrawn;
+    }
+
+    @Override
+    public EnditException getFailure(String id)
+    {
+        return publisher.getFailure(id);
+    }
+
+    /**
+     * Stops compacting the index. Lines already queued are still written, after
+     * which the index is closed.
+     */
+    @Override
+    public void shutdown()
+    {
+        synchronized (this) {
+            timer.cancel(false);
+        }
+        closed = true;
+        write();
+        publisher.shutdown();
+    }
+
+    private void remove(String id)
+    {
+        synchronized (this) {
+            if (!pending.remove(id)) {
+                return;
+            }
+            JsonObject line = new JsonObject();
+            line.addProperty("op", "remove");
+            line.addProperty("pnfsid", id);
+            queue.add(line.toString());
+        }
+        write();
+    }
+
+    /**
+     * Starts the writer unless it is already queued or running. Once the executor
+     * no longer accepts the writer, it runs on the calling thread.
+     */
+    private void write()
+    {
+        if (writing.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                drain();
+            }
+        }
+    }
+
+    private void drain()
+    {
+        boolean open;
+        try {
+            String line;
+            while ((line = queue.poll()) != null) {
+                append(line);
+            }
+            if (compactDue) {
+                compactDue = false;
+                compactIfNeeded();
+            }
+            if (closed) {
+                close();
+            }
+            open = channel != null;
+        } finally {
+            writing.set(false);
+        }
+        /* A line may have been queued after the queue was found empty, but before
+         * the writer was accounted as finished.
+         */
+        if (open && (!queue.isEmpty() || compactDue || closed)) {
+            write();
+        }
+    }
+
+    private void append(String line)
+    {
+        if (channel == null) {
+            return;
+        }
+        if (!unwritten.isEmpty()) {
+            unwritten.add(line);
+            return;
+        }
+        try {
+            write(channel, line);
+            lines++;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to update {}, will rewrite it: {}", file, e.toString());
+            unwritten.add(line);
+        }
+    }
+
+    /**
+     * Replaces the index by a new generation if it holds lines of requests that are
+     * no longer pending, or if an append failed.
+     */
+    private void compactIfNeeded()
+    {
+        int size;
+        synchronized (this) {
+            size = pending.size();
+        }
+        if (channel == null || (unwritten.isEmpty() && lines <= size + 1)) {
+            return;
+        }
+        try {
+            rewrite();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to compact {}: {}", file, e.toString());
+        }
+    }
+
+    private void close()
+    {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close {}: {}", file, e.toString());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes a new generation of the index holding the last add line of every
+     * request that has not been removed since, in the current generation followed
+     * by the unwritten lines. The first generation is empty.
+     */
+    private void rewrite() throws IOException
+    {
+        Map<String, Long> adds = new HashMap<>();
+        if (channel != null) {
+            long n;
+            try (BufferedReader reader = EnditFiles.newBufferedReader(file)) {
+                n = scan(reader.lines()::iterator, 0, adds);
+            }
+            scan(unwritten, n, adds);
+        }
+
+        long generation = Math.max(this.generation + 1, System.currentTimeMillis());
+        Path tmpFile = file.resolveSibling("." + INDEX_NAME);
+        FileChannel channel = EnditFiles.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.WRITE);
+        try {
+            JsonObject header = new JsonObject();
+            header.addProperty("generation", generation);
+            write(channel, header.toString());
+            if (this.channel != null) {
+                long n;
+                try (BufferedReader reader = EnditFiles.newBufferedReader(file)) {
+                    n = copy(reader.lines()::iterator, 0, adds, channel);
+                }
+                copy(unwritten, n, adds, channel);
+            }
+            EnditFiles.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            channel.close();
+            EnditFiles.deleteIfExists(tmpFile);
+            throw e;
+        }
+        if (this.channel != null) {
+            this.channel.close();
+        }
+        this.channel = channel;
+        this.generation = generation;
+        lines = adds.size() + 1;
+        unwritten.clear();
+    }
+
+    /**
+     * Records the number of the last add line of every request not removed
+     * afterwards.
+     *
+     * @param n number of the first line
+     * @return number of the line following the last line
+     */
+    private static long scan(Iterable<String> lines, long n, Map<String, Long> adds)
+    {
+        for (String line : lines) {
+            JsonObject entry = parse(line);
+            if (entry != null && entry.has("op") && entry.has("pnfsid")) {
+                String id = entry.get("pnfsid").getAsString();
+                if (entry.get("op").getAsString().equals("add")) {
+                    adds.put(id, n);
+                } else {
+                    adds.remove(id);
+                }
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Writes the lines recorded by {@link #scan}.
+     *
+     * @param n number of the first line
+     * @return number of the line following the last line
+     */
+    private static long copy(Iterable<String> lines, long n, Map<String, Long> adds, FileChannel channel)
+            throws IOException
+    {
+        for (String line : lines) {
+            JsonObject entry = parse(line);
+            if (entry != null && entry.has("pnfsid") && Long.valueOf(n).equals(adds.get(entry.get("pnfsid").getAsString()))) {
+                write(channel, line);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Parses a line of the index, returning null if the line is not a JSON object,
+     * e.g. because its append was cut short.
+     */
+    private static JsonObject parse(String line)
+    {
+        try {
+            JsonElement element = JsonParser.parseString(line);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (JsonParseException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private static void write(FileChannel channel, String line) throws IOException
+    {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(line + "\n");
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
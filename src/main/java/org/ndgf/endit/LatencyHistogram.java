@@ -0,0 +1,130 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with logarithmic buckets.
+ *
+ * In the spirit of HdrHistogram, latencies are recorded in microseconds into
+ * buckets covering each power of two with 16 linear sub-buckets, giving a relative
+ * precision of about 6% over the full range from one microsecond to weeks at a
+ * fixed memory cost of a few kilobytes. Recording is a single atomic increment.
+ */
+class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the time elapsed since the given value of {@link System#nanoTime}.
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void record(long duration, TimeUnit unit)
+    {
+        long micros = Math.max(0, unit.toMicros(duration));
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /** Returns the maximum recorded latency in microseconds. */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency in microseconds below which the given fraction of the
+     * recorded latencies fall. The result is the upper bound of the bucket
+     * containing the percentile.
+     */
+    public long getPercentile(double fraction)
+    {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long micros)
+    {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index)
+    {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d p50=%s p90=%s p99=%s max=%s", getCount(),
+                             format(getPercentile(0.5)), format(getPercentile(0.9)),
+                             format(getPercentile(0.99)), format(getMax()));
+    }
+
+    private static String format(long micros)
+    {
+        if (micros < 1000) {
+            return micros + "us";
+        } else if (micros < 1_000_000) {
+            return micros / 1000 + "ms";
+        } else {
+            return String.format("%.1fs", micros / 1e6);
+        }
+    }
+}
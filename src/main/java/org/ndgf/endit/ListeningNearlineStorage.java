@@ -25,8 +25,6 @@ import java.net.URI;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -39,7 +37,7 @@ import org.dcache.util.Checksum;
 
 public abstract class ListeningNearlineStorage implements NearlineStorage
 {
-    private final ConcurrentMap<UUID, Future<?>> tasks = new ConcurrentHashMap<>();
+    private final TaskIndex<UUID, Future<?>> tasks = new TaskIndex<>();
 
     @Override
     public void cancel(UUID uuid)
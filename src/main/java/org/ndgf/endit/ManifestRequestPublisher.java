@@ -0,0 +1,304 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Publishes requests in batches as manifest files in the request directory.
+ *
+ * A manifest is a JSON object mapping pnfsids to request records. Manifests are
+ * written once a batch reaches its size limit or once its oldest record has waited
+ * for the maximum delay. Withdrawn requests are published as records with the
+ * action <tt>cancel</tt>.
+ *
+ * Endit acknowledges a manifest by creating a file with the same name and the suffix
+ * <tt>.ack</tt>, containing one line per record of the form
+ * <tt>&lt;pnfsid&gt; &lt;rc&gt; [&lt;message&gt;]</tt>. A return code of zero means the
+ * record was accepted. Any other return code fails the request, unless the request
+ * has completed or been withdrawn in the meantime. Acknowledged manifests are
+ * deleted by the publisher.
+ */
+class ManifestRequestPublisher implements RequestPublisher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ManifestRequestPublisher.class);
+
+    static final String MANIFEST_PREFIX = "manifest-";
+
+    static final String ACK_SUFFIX = ".ack";
+
+    private final Path requestDir;
+    private volatile int maxRecords;
+    private final Consumer<String> onFailure;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> timer;
+
+    /** Whether a write of a full batch has been queued. Guarded by this. */
+    private boolean writeQueued;
+
+    /** Whether the publisher has been shut down. Guarded by this. */
+    private boolean closed;
+    private final ConcurrentMap<String, EnditException> failures = new ConcurrentHashMap<>();
+
+    /** Requests published and neither completed nor withdrawn. */
+    private final Set<String> published = ConcurrentHashMap.newKeySet();
+
+    /** Records not yet written to a manifest. Guarded by this. */
+    private Map<String, JsonObject> pending = new LinkedHashMap<>();
+
+    /**
+     * @param requestDir Endit request directory
+     * @param maxRecords maximum number of records per manifest
+     * @param maxDelay maximum time in milliseconds a record waits before being written
+     * @param onFailure called with the pnfsid of every request failed by Endit
+     */
+    ManifestRequestPublisher(Path requestDir, int maxRecords, long maxDelay, Consumer<String> onFailure)
+    {
+        this.requestDir = requestDir;
+        this.onFailure = onFailure;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("endit-manifest-%d").setDaemon(true).build());
+        setLimits(maxRecords, maxDelay);
+    }
+
+    /**
+     * Changes the batching limits. Takes effect for the current batch.
+     */
+    public synchronized void setLimits(int maxRecords, long maxDelay)
+    {
+        if (closed) {
+            return;
+        }
+        this.maxRecords = maxRecords;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        timer = executor.scheduleWithFixedDelay(this::run, maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(String id, JsonObject request)
+    {
+        published.add(id);
+        add(id, request);
+    }
+
+    @Override
+    public synchronized void completed(String id)
+    {
+        published.remove(id);
+        pending.remove(id);
+        failures.remove(id);
+    }
+
+    @Override
+    public boolean withdraw(String id)
+    {
+        published.remove(id);
+        failures.remove(id);
+        synchronized (this) {
+            if (pending.remove(id) != null) {
+                return true;
+            }
+        }
+        JsonObject cancel = new JsonObject();
+        cancel.addProperty("action", "cancel");
+        cancel.addProperty("time", System.currentTimeMillis() / 1000);
+        add(id, cancel);
+        return true;
+    }
+
+    @Override
+    public EnditException getFailure(String id)
+    {
+        return failures.remove(id);
+    }
+
+    /**
+     * Writes the pending records and stops the publisher. Records added afterwards
+     * are written right away.
+     */
+    @Override
+    public void shutdown()
+    {
+        synchronized (this) {
+            closed = true;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        executor.shutdown();
+        writeManifests(true);
+    }
+
+    private void add(String id, JsonObject record)
+    {
+        boolean full;
+        boolean open;
+        synchronized (this) {
+            pending.put(id, record);
+            open = !closed;
+            full = !writeQueued && pending.size() >= maxRecords;
+            writeQueued |= full;
+        }
+        if (!open) {
+            writeManifests(true);
+        } else if (full) {
+            try {
+                executor.execute(() -> writeManifests(false));
+            } catch (RejectedExecutionException e) {
+                writeManifests(true);
+            }
+        }
+    }
+
+    private void run()
+    {
+        writeManifests(true);
+        readAcknowledgements();
+    }
+
+    /**
+     * Writes the pending records in manifests of at most the maximum number of
+     * records each.
+     *
+     * @param partial whether to also write the remaining records if they do not
+     *                fill a manifest
+     */
+    private void writeManifests(boolean partial)
+    {
+        while (true) {
+            Map<String, JsonObject> batch;
+            synchronized (this) {
+                if (pending.isEmpty() || (!partial && pending.size() < maxRecords)) {
+                    writeQueued = false;
+                    return;
+                }
+                if (pending.size() <= maxRecords) {
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                } else {
+                    batch = new LinkedHashMap<>();
+                    Iterator<Map.Entry<String, JsonObject>> records = pending.entrySet().iterator();
+                    while (batch.size() < maxRecords) {
+                        Map.Entry<String, JsonObject> record = records.next();
+                        batch.put(record.getKey(), record.getValue());
+                        records.remove();
+                    }
+                }
+            }
+            if (!writeManifest(batch)) {
+                synchronized (this) {
+                    batch.putAll(pending);
+                    pending = batch;
+                    writeQueued = false;
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean writeManifest(Map<String, JsonObject> batch)
+    {
+        JsonObject manifest = new JsonObject();
+        batch.forEach(manifest::add);
+        /* Pools sharing the request directory must never replace each other's manifests. */
+        String name = MANIFEST_PREFIX + System.currentTimeMillis() + "-" + UUID.randomUUID();
+        Path tmpFile = requestDir.resolve("." + name);
+        try {
+            EnditFiles.write(tmpFile, manifest.toString(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            EnditFiles.move(tmpFile, requestDir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write Endit manifest {}, will retry: {}", name, e.toString());
+            return false;
+        }
+    }
+
+    private void readAcknowledgements()
+    {
+        try (DirectoryStream<Path> acks = EnditFiles.newDirectoryStream(requestDir, MANIFEST_PREFIX + "*" + ACK_SUFFIX)) {
+            for (Path ack : acks) {
+                try {
+                    List<String> lines = EnditFiles.readAllLines(ack);
+                    for (String line : lines) {
+                        acknowledge(ack, line);
+                    }
+                    String manifest = ack.getFileName().toString();
+                    EnditFiles.deleteIfExists(ack.resolveSibling(manifest.substring(0, manifest.length() - ACK_SUFFIX.length())));
+                    EnditFiles.deleteIfExists(ack);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to read Endit manifest acknowledgement {}: {}", ack, e.toString());
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            LOGGER.warn("Failed to read Endit manifest acknowledgements: {}", e.toString());
+        }
+    }
+
+    private void acknowledge(Path ack, String line)
+    {
+        List<String> fields = Splitter.on(' ').trimResults().omitEmptyStrings().limit(3).splitToList(line);
+        if (fields.isEmpty()) {
+            return;
+        }
+        int rc;
+        try {
+            rc = fields.size() > 1 ? Integer.parseInt(fields.get(1)) : 0;
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid acknowledgement in {}: {}", ack, line);
+            return;
+        }
+        String id = fields.get(0);
+        if (rc != 0 && published.contains(id)) {
+            String message = fields.size() > 2 ? fields.get(2) : "Endit rejected the request without providing a reason.";
+            failures.put(id, new EnditException(rc, message));
+            if (!published.contains(id)) {
+                /* Completed or withdrawn while the failure was recorded. */
+                failures.remove(id);
+                return;
+            }
+            onFailure.accept(id);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Rate limit of the file system metadata operations of all Endit nearline
+ * storages in the JVM.
+ *
+ * Every kind of operation has its own token bucket, implemented lock-free as a
+ * virtual schedule: every operation reserves the next slot of its bucket and
+ * waits until the slot is due. Up to the burst size of operations may proceed
+ * without waiting after the bucket has been idle.
+ *
+ * Operations made while publishing new requests have lower priority than all
+ * other operations, i.e. those completing, failing or aborting requests: they
+ * only reserve a slot once no other operation is waiting for the bucket, or once
+ * they have yielded for {@link #MAX_YIELD} slots, so that a steady stream of other
+ * operations cannot starve publishing.
+ *
+ * Code holding a monitor that other threads may wait for defers its waits: its
+ * operations reserve their slots without waiting, and the thread waits for the
+ * last of these slots once it has released the monitor. Deferred publications
+ * do not wait for the bucket to become idle.
+ *
+ * Operations made on shutdown are exempt from the budget, as they have to finish
+ * within the shutdown timeout.
+ */
+final class MetadataBudget
+{
+    enum Kind
+    {
+        STAT, CREATE, LINK, UNLINK, RENAME, SYNC
+    }
+
+    static final int DEFAULT_BURST = 100;
+
+    /** Number of slots a publication yields to other operations at most. */
+    static final int MAX_YIELD = 16;
+
+    private static final Map<Kind, Bucket> BUCKETS = new EnumMap<>(Kind.class);
+
+    static {
+        for (Kind kind : Kind.values()) {
+            BUCKETS.put(kind, new Bucket());
+        }
+    }
+
+    private static final ThreadLocal<Caller> CALLER = ThreadLocal.withInitial(Caller::new);
+
+    private MetadataBudget()
+    {
+    }
+
+    /**
+     * Sets the rate of the bucket of the given kind.
+     *
+     * @param rate operations per second; not limited unless positive
+     */
+    static void setRate(Kind kind, double rate)
+    {
+        BUCKETS.get(kind).setRate(rate);
+    }
+
+    /**
+     * Sets the number of operations allowed to proceed without waiting after
+     * idling, for all kinds.
+     */
+    static void setBurst(int burst)
+    {
+        for (Bucket bucket : BUCKETS.values()) {
+            bucket.burst = burst;
+        }
+    }
+
+    /**
+     * Waits for the budget to allow another operation of the given kind.
+     */
+    static void acquire(Kind kind)
+    {
+        Caller caller = CALLER.get();
+        if (caller.exempt > 0) {
+            return;
+        }
+        if (caller.deferring > 0) {
+            caller.defer(BUCKETS.get(kind).reserve(false));
+        } else {
+            long slot = BUCKETS.get(kind).reserve(caller.publishing > 0);
+            Caller.sleepUntil(slot);
+        }
+    }
+
+    /**
+     * Calls the given publication with low priority for its metadata operations.
+     */
+    static <V> V publishing(Callable<V> publication) throws Exception
+    {
+        Caller caller = CALLER.get();
+        caller.publishing++;
+        try {
+            return publication.call();
+        } finally {
+            caller.publishing--;
+        }
+    }
+
+    /**
+     * Runs the given action with its waits for the budget deferred until it
+     * returns.
+     */
+    static void deferring(Runnable action)
+    {
+        Caller caller = CALLER.get();
+        caller.deferring++;
+        try {
+            action.run();
+        } finally {
+            caller.settle();
+        }
+    }
+
+    /**
+     * Calls the given action with its waits for the budget deferred until it
+     * returns.
+     */
+    static boolean deferring(BooleanSupplier action)
+    {
+        Caller caller = CALLER.get();
+        caller.deferring++;
+        try {
+            return action.getAsBoolean();
+        } finally {
+            caller.settle();
+        }
+    }
+
+    /**
+     * Runs the given action without waiting for the budget.
+     */
+    static void exempt(Runnable action)
+    {
+        Caller caller = CALLER.get();
+        caller.exempt++;
+        try {
+            action.run();
+        } finally {
+            caller.exempt--;
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds operations of each kind have waited for the budget.
+     */
+    static Map<Kind, Long> getThrottled()
+    {
+        Map<Kind, Long> throttled = new EnumMap<>(Kind.class);
+        BUCKETS.forEach((kind, bucket) -> throttled.put(kind, TimeUnit.NANOSECONDS.toMillis(bucket.throttled.sum())));
+        return throttled;
+    }
+
+    /**
+     * State of the calling thread.
+     */
+    private static class Caller
+    {
+        int publishing;
+        int deferring;
+        int exempt;
+
+        /** Whether a deferred wait is pending, and the slot it waits for. */
+        boolean owing;
+        long deadline;
+
+        void defer(long slot)
+        {
+            if (!owing || slot > deadline) {
+                deadline = slot;
+                owing = true;
+            }
+        }
+
+        void settle()
+        {
+            if (--deferring == 0 && owing) {
+                owing = false;
+                sleepUntil(deadline);
+            }
+        }
+
+        static void sleepUntil(long slot)
+        {
+            long now = System.nanoTime();
+            if (slot > now) {
+                Uninterruptibles.sleepUninterruptibly(slot - now, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    static class Bucket
+    {
+        /** Time in nanoseconds between two operations, or 0 if the rate is not limited. */
+        volatile long interval;
+
+        /** Number of operations allowed to proceed without waiting after idling. */
+        volatile int burst = DEFAULT_BURST;
+
+        /** Time of the next free slot. */
+        final AtomicLong next = new AtomicLong(System.nanoTime());
+
+        final LongAdder throttled = new LongAdder();
+
+        void setRate(double rate)
+        {
+            interval = (rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        }
+
+        /**
+         * Reserves the next slot. The time until the slot is due, and any time spent
+         * waiting for the bucket to become idle, is accounted as throttled.
+         *
+         * @param yield whether to first wait until no earlier reservation is pending,
+         *              for at most {@link #MAX_YIELD} slots
+         * @return the time of the reserved slot in terms of {@link System#nanoTime}
+         */
+        long reserve(boolean yield)
+        {
+            long interval = this.interval;
+            long begin = System.nanoTime();
+            if (interval == 0) {
+                return begin;
+            }
+            long aged = begin + interval * MAX_YIELD;
+            long now = begin;
+            long slot;
+            while (true) {
+                long next = this.next.get();
+                if (yield && next > now && now < aged) {
+                    Uninterruptibles.sleepUninterruptibly(Math.min(next, aged) - now, TimeUnit.NANOSECONDS);
+                    now = System.nanoTime();
+                    continue;
+                }
+                slot = Math.max(next, now - interval * burst);
+                if (this.next.compareAndSet(next, slot + interval)) {
+                    break;
+                }
+                now = System.nanoTime();
+            }
+            long end = Math.max(slot, now);
+            if (end > begin) {
+                throttled.add(end - begin);
+            }
+            return slot;
+        }
+    }
+}
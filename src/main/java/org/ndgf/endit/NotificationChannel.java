@@ -0,0 +1,191 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Receives completion notifications from Endit over a Unix domain socket.
+ *
+ * Endit connects to the socket and writes one event per line:
+ *
+ * <pre>
+ *     flushed &lt;pnfsid&gt;
+ *     recalled &lt;pnfsid&gt;
+ *     failed &lt;pnfsid&gt; [&lt;rc&gt; [&lt;message&gt;]]
+ * </pre>
+ *
+ * Flushed and recalled events cause the flush or stage of the file to be polled
+ * right away, while failed events fail the tasks of the file. Unix domain sockets require Java 16 or newer;
+ * the channel is bound reflectively so the provider still runs on older JVMs when
+ * notifications are not used.
+ */
+class NotificationChannel
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationChannel.class);
+
+    private final AbstractEnditNearlineStorage storage;
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final ExecutorService executor;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+
+    NotificationChannel(AbstractEnditNearlineStorage storage, Path socket) throws IOException
+    {
+        this.storage = storage;
+        this.socket = socket;
+        server = bind(socket);
+        executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("endit-notify-%d").setDaemon(true).build());
+        executor.execute(this::accept);
+    }
+
+    private static ServerSocketChannel bind(Path socket) throws IOException
+    {
+        SocketAddress address;
+        ServerSocketChannel server;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, socket);
+            server = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Notification sockets require Java 16 or newer.", e);
+        }
+        EnditFiles.deleteIfExists(socket);
+        try {
+            server.bind(address);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    public Path getSocket()
+    {
+        return socket;
+    }
+
+    public void shutdown()
+    {
+        try {
+            server.close();
+            for (SocketChannel connection : connections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to close connection on notification socket {}: {}", socket, e.toString());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close notification socket {}: {}", socket, e.toString());
+        } finally {
+            try {
+                EnditFiles.deleteIfExists(socket);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to delete notification socket {}: {}", socket, e.toString());
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    private void accept()
+    {
+        try {
+            while (true) {
+                SocketChannel connection = server.accept();
+                connections.add(connection);
+                executor.execute(() -> read(connection));
+            }
+        } catch (ClosedChannelException ignored) {
+        } catch (IOException e) {
+            LOGGER.warn("Failed to accept connection on notification socket {}: {}", socket, e.toString());
+        }
+    }
+
+    private void read(SocketChannel connection)
+    {
+        try (BufferedReader reader = new BufferedReader(Channels.newReader(connection, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                notify(line);
+            }
+        } catch (ClosedChannelException ignored) {
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read from notification socket {}: {}", socket, e.toString());
+        } finally {
+            connections.remove(connection);
+        }
+    }
+
+    private void notify(String line)
+    {
+        List<String> fields = Splitter.on(' ').trimResults().omitEmptyStrings().limit(4).splitToList(line);
+        if (fields.size() < 2) {
+            LOGGER.warn("Invalid notification: {}", line);
+            return;
+        }
+        String id = fields.get(1);
+        switch (fields.get(0)) {
+        case "flushed":
+            storage.poll(new TaskKey(id, PollingTask.Action.MIGRATE));
+            break;
+        case "recalled":
+            storage.poll(new TaskKey(id, PollingTask.Action.RECALL));
+            break;
+        case "failed":
+            int rc = 1;
+            if (fields.size() > 2) {
+                try {
+                    rc = Integer.parseInt(fields.get(2));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid notification: {}", line);
+                    return;
+                }
+            }
+            String message = (fields.size() > 3) ? fields.get(3) : "Endit reported a failure without providing a reason.";
+            storage.fail(id, new EnditException(rc, message));
+            break;
+        default:
+            LOGGER.warn("Invalid notification: {}", line);
+            break;
+        }
+    }
+}
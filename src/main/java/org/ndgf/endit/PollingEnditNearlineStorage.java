@@ -20,19 +20,31 @@ package org.ndgf.endit;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableScheduledFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class PollingEnditNearlineStorage extends AbstractEnditNearlineStorage
 {
-    protected int period;
+    private final static Logger LOGGER = LoggerFactory.getLogger(PollingEnditNearlineStorage.class);
+
+    private final TaskIndex<TaskKey, TaskFuture<?>> tasks = new TaskIndex<>();
+
+    protected volatile int period;
+
+    private volatile int sentinelPeriod;
+
+    private volatile StallDetector stallDetector = new StallDetector(0, Collections.emptyList(), Collections.emptyList());
 
-    protected ListeningScheduledExecutorService executor;
+    private ListenableScheduledFuture<?> stallCheck;
 
     public PollingEnditNearlineStorage(String type, String name)
     {
@@ -42,24 +54,69 @@ public class PollingEnditNearlineStorage extends AbstractEnditNearlineStorage
     @Override
     public synchronized void configure(Map<String, String> properties) throws IllegalArgumentException
     {
-        int threads = Integer.parseInt(properties.getOrDefault("threads", "20"));
         int period = Integer.parseInt(properties.getOrDefault("period", "5000"));
+        long stallWindow = Long.parseLong(properties.getOrDefault("stall-window", "900000"));
+        int sentinelPeriod = Integer.parseInt(properties.getOrDefault("sentinel-period", "300000"));
+        checkArgument(stallWindow >= 0, "stall-window must not be negative.");
+        checkArgument(sentinelPeriod > 0, "sentinel-period must be positive.");
 
         super.configure(properties);
 
+        /* Queued tasks pick up the new period when they are rescheduled, and the
+         * thread pools are resized in place, so no task has to be migrated.
+         */
         this.period = period;
+        this.sentinelPeriod = sentinelPeriod;
 
-        if (executor != null) {
-            executor.shutdown();
+        StallDetector previous = stallDetector;
+        stallDetector = new StallDetector(stallWindow, Collections.singletonList(inDir), Arrays.asList(outDir, requestDir));
+        if (previous.isStalled()) {
+            resume();
         }
-        executor = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(threads));
+        if (stallCheck != null) {
+            stallCheck.cancel(false);
+        }
+        stallCheck = control.scheduler().scheduleWithFixedDelay(() -> io.execute(this::checkProgress),
+                                                                period, period, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Returns the period at which tasks are polled. While Endit is stalled, tasks are
+     * only polled at the sentinel period.
+     */
+    private int currentPeriod()
+    {
+        return stallDetector.isStalled() ? sentinelPeriod : period;
     }
 
-    @Override
-    protected ListeningExecutorService executor()
+    private void checkProgress()
+    {
+        StallDetector detector = stallDetector;
+        try {
+            if (detector.check(!tasks.isEmpty())) {
+                if (detector.isStalled()) {
+                    LOGGER.warn("[{}] Endit has not made progress on {} queued requests; polling every {} ms until it does.",
+                                name, tasks.size(), sentinelPeriod);
+                    metrics.setStalled(true);
+                } else {
+                    LOGGER.info("[{}] Endit is making progress again.", name);
+                    resume();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("[{}] Failed to check for progress by Endit: {}", name, e.toString());
+        }
+    }
+
+    /**
+     * Polls all tasks right away and returns them to the normal period.
+     */
+    private void resume()
     {
-        return executor;
+        metrics.setStalled(false);
+        for (TaskFuture<?> task : tasks.values()) {
+            io.execute(() -> MetadataBudget.deferring(task::resume));
+        }
     }
 
     @Override
@@ -68,68 +125,172 @@ public class PollingEnditNearlineStorage extends AbstractEnditNearlineStorage
         return new TaskFuture<>(task);
     }
 
+    @Override
+    protected void poll(TaskKey key)
+    {
+        TaskFuture<?> task = tasks.get(key);
+        if (task != null) {
+            io.execute(() -> MetadataBudget.deferring(task::pollNow));
+        }
+    }
+
+    @Override
+    protected void fail(TaskKey key, EnditException cause)
+    {
+        TaskFuture<?> task = tasks.get(key);
+        if (task != null) {
+            io.execute(() -> MetadataBudget.deferring(() -> task.fail(cause)));
+        }
+    }
+
     @Override
     public void shutdown()
     {
-        executor.shutdown();
+        cancelAll(tasks.values());
+        shutdownPublishers();
     }
 
     /**
      * Represents the future result of a PollingTask.
      *
      * Periodically polls the task to check whether it has completed. If this Future
-     * is cancelled, the task is aborted.
+     * is cancelled, the task is aborted. Polls are timed by the control stage and
+     * executed by the I/O stage. Waits for the metadata budget are deferred until
+     * the monitor of this Future has been released.
      *
      * @param <V> The result type returned by this Future's <tt>get</tt> method
      */
     private class TaskFuture<V> extends AbstractFuture<V> implements Runnable
     {
         private final PollingTask<V> task;
-        private ListenableScheduledFuture<?> future;
+        private volatile ListenableScheduledFuture<?> future;
 
         TaskFuture(PollingTask<V> task)
         {
             this.task = task;
-            future = executor.schedule(this, period, TimeUnit.MILLISECONDS);
+            TaskKey key = TaskKey.of(task);
+            if (tasks.putIfAbsent(key, this) != null) {
+                setException(new IllegalStateException("Duplicate nearline requests on " + key));
+                return;
+            }
+            addListener(() -> tasks.remove(key, this), MoreExecutors.directExecutor());
+            synchronized (this) {
+                future = control.scheduler().schedule(this, currentPeriod(), TimeUnit.MILLISECONDS);
+            }
         }
 
         @Override
-        public synchronized void run()
+        public void run()
         {
-            try {
-                if (!isDone()) {
-                    V result = task.poll();
-                    if (result != null) {
-                        set(result);
-                    } else {
-                        future = executor.schedule(this, period, TimeUnit.MILLISECONDS);
-                    }
-                }
-            } catch (Exception e) {
+            io.execute(() -> MetadataBudget.deferring(this::pollScheduled));
+        }
+
+        private synchronized void pollScheduled()
+        {
+            if (!isDone() && !poll()) {
+                future = control.scheduler().schedule(this, currentPeriod(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Polls the task and reschedules it at the current period, unless a scheduled
+         * poll is already underway.
+         */
+        public synchronized void resume()
+        {
+            if (!isDone() && future.cancel(false)) {
+                pollScheduled();
+            }
+        }
+
+        /**
+         * Polls the task ahead of schedule.
+         */
+        public synchronized void pollNow()
+        {
+            if (!isDone() && poll()) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Aborts the task and fails this Future with the given cause.
+         */
+        public synchronized void fail(Exception cause)
+        {
+            if (!isDone()) {
                 try {
-                    task.abort();
+                    if (EnditEvents.abort(task)) {
+                        sweeper.cleanup(task);
+                    }
                 } catch (Exception suppressed) {
-                    e.addSuppressed(suppressed);
+                    cause.addSuppressed(suppressed);
                 }
-                setException(e);
+                failed(cause);
             }
         }
 
+        private void failed(Exception cause)
+        {
+            setException(cause);
+            metrics.trace(task.getId(), RequestTrace.Event.FAILED, cause.toString());
+            EnditEvents.completed(task, cause);
+            future.cancel(false);
+        }
+
+        /**
+         * Polls the task once.
+         *
+         * @return true if this Future is done
+         */
+        private boolean poll()
+        {
+            try {
+                V result = EnditEvents.poll(task);
+                if (result != null) {
+                    stallDetector.progress();
+                    set(result);
+                    metrics.trace(task.getId(), RequestTrace.Event.COMPLETED);
+                    EnditEvents.completed(task, null);
+                    return true;
+                }
+                return false;
+            } catch (Exception e) {
+                stallDetector.progress();
+                fail(e);
+                return true;
+            }
+        }
+
+        /**
+         * Aborts the task and cancels this Future, unless the task can no longer be
+         * aborted because Endit already served it. The remaining files of the task
+         * are removed in the background by the sweeper.
+         */
         @Override
-        public synchronized boolean cancel(boolean mayInterruptIfRunning)
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return MetadataBudget.deferring(() -> abort(mayInterruptIfRunning));
+        }
+
+        private synchronized boolean abort(boolean mayInterruptIfRunning)
         {
             if (isDone()) {
                 return false;
             }
             try {
-                if (!task.abort()) {
+                if (!EnditEvents.abort(task)) {
                     return false;
                 }
-                super.cancel(mayInterruptIfRunning);
             } catch (Exception e) {
-                setException(e);
+                failed(e);
+                return false;
             }
+            super.cancel(mayInterruptIfRunning);
             future.cancel(false);
+            sweeper.cleanup(task);
+            metrics.trace(task.getId(), RequestTrace.Event.CANCELLED);
+            EnditEvents.cancelled(task);
             return true;
         }
     }
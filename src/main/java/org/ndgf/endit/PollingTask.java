@@ -17,9 +17,6 @@
  */
 package org.ndgf.endit;
 
-import java.nio.file.Path;
-import java.util.List;
-
 /**
  * A polling task has an initiating action (start), followed by periodic polls
  * for the result.
@@ -28,8 +25,17 @@ import java.util.List;
  */
 interface PollingTask<T>
 {
-    /** Returns the list of files to watch for events. */
-    List<Path> getFilesToWatch();
+    /** Kinds of requests published to Endit. */
+    enum Action
+    {
+        MIGRATE, RECALL
+    }
+
+    /** Returns the pnfsid of the file the task operates on. */
+    String getId();
+
+    /** Returns the kind of request the task publishes. */
+    Action getAction();
 
     /** Called to initiate the task. */
     T start() throws Exception;
@@ -48,4 +54,13 @@ interface PollingTask<T>
      * (presumably because the task already completed).
      */
     boolean abort() throws Exception;
+
+    /**
+     * Called after the task was aborted to remove files it left behind. Unlike
+     * abort, which decides whether the task can be aborted, the cleanup may be
+     * deferred to a background thread.
+     */
+    default void cleanup() throws Exception
+    {
+    }
 }
@@ -0,0 +1,278 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Orders the publication of requests to Endit by priority and storage class.
+ *
+ * Starting a task publishes its request. Rather than starting tasks in the order in
+ * which they were submitted, every submission queues a job on the I/O stage that
+ * runs whichever pending start comes first at that time:
+ *
+ * - Starts of higher priority come first, so a high priority request only waits for
+ *   the starts already in progress, no matter how many bulk requests are queued.
+ * - Among equal priorities, storage classes are served by weighted fair queuing: every
+ *   storage class has its own queue, and a class of weight 2 is served twice as often
+ *   as a class of weight 1 while both have pending starts.
+ * - While several classes have pending starts, a class that holds more than its share of
+ *   the requests published to Endit and not yet completed is skipped.
+ * - Starts of the same class and priority run in submission order.
+ *
+ * A request takes a {@link Ticket}, which is the executor for its start, and releases
+ * it once the request is done. A request published again, e.g. to retry a transient
+ * failure, goes through the same ticket and is still accounted as published once.
+ */
+class PublicationQueue
+{
+    private static final Comparator<Ticket> ORDER =
+            Comparator.<Ticket>comparingInt(t -> -t.priority).thenComparingLong(t -> t.sequence);
+
+    /**
+     * Executor for the start of a single request.
+     */
+    class Ticket implements Executor
+    {
+        private final int priority;
+        private final String storageClass;
+        private long sequence;
+        private Runnable command;
+        private boolean started;
+        private boolean released;
+
+        private Ticket(int priority, String storageClass)
+        {
+            this.priority = priority;
+            this.storageClass = storageClass;
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            submit(this, command);
+        }
+
+        /**
+         * Releases the ticket once the request is done, whether or not it was started.
+         */
+        void release()
+        {
+            PublicationQueue.this.release(this);
+        }
+    }
+
+    private static class Lane
+    {
+        final PriorityQueue<Ticket> queue = new PriorityQueue<>(ORDER);
+        double weight;
+        double finish;
+        int inFlight;
+
+        Lane(double weight)
+        {
+            this.weight = weight;
+        }
+    }
+
+    private final Stage stage;
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private Map<String, Double> weights = Map.of();
+    private double share = 1.0;
+    private long sequence;
+    private double clock;
+    private int inFlight;
+    private int pending;
+    private int deferred;
+
+    PublicationQueue(Stage stage)
+    {
+        this.stage = stage;
+    }
+
+    /**
+     * @param weights weights by storage class; classes not listed have weight 1
+     * @param share the fraction of the published requests a storage class may hold
+     *              while other classes are waiting
+     */
+    synchronized void configure(Map<String, Double> weights, double share)
+    {
+        this.weights = Map.copyOf(weights);
+        this.share = share;
+        lanes.forEach((storageClass, lane) -> lane.weight = weight(storageClass));
+    }
+
+    Ticket ticket(int priority, String storageClass)
+    {
+        return new Ticket(priority, (storageClass == null) ? "" : storageClass);
+    }
+
+    /**
+     * Returns the number of pending starts.
+     */
+    synchronized int size()
+    {
+        return pending;
+    }
+
+    private double weight(String storageClass)
+    {
+        return weights.getOrDefault(storageClass, 1.0);
+    }
+
+    private void submit(Ticket ticket, Runnable command)
+    {
+        synchronized (this) {
+            ticket.command = command;
+            ticket.sequence = sequence++;
+            Lane lane = lanes.computeIfAbsent(ticket.storageClass, sc -> new Lane(weight(sc)));
+            if (lane.queue.isEmpty()) {
+                lane.finish = Math.max(lane.finish, clock);
+            }
+            lane.queue.add(ticket);
+            pending++;
+        }
+        try {
+            stage.execute(this::runNext);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                Lane lane = lanes.get(ticket.storageClass);
+                lane.queue.remove(ticket);
+                pending--;
+                prune(ticket.storageClass, lane);
+            }
+            throw e;
+        }
+    }
+
+    private void runNext()
+    {
+        Ticket ticket;
+        boolean more;
+        synchronized (this) {
+            Lane lane = select();
+            if (lane == null) {
+                /* Every waiting class holds more than its share. Retried when a request is released. */
+                deferred++;
+                return;
+            }
+            ticket = lane.queue.poll();
+            pending--;
+            clock = lane.finish;
+            lane.finish += 1 / lane.weight;
+            if (!ticket.released && !ticket.started) {
+                ticket.started = true;
+                lane.inFlight++;
+                inFlight++;
+            }
+            prune(ticket.storageClass, lane);
+            more = deferred > 0;
+            if (more) {
+                deferred--;
+            }
+        }
+        if (more) {
+            drain();
+        }
+        ticket.command.run();
+    }
+
+    /**
+     * Returns the lane of the next start, or null if all lanes with pending starts
+     * are over their share.
+     */
+    private Lane select()
+    {
+        int waiting = 0;
+        for (Lane lane : lanes.values()) {
+            if (!lane.queue.isEmpty()) {
+                waiting++;
+            }
+        }
+        Lane best = null;
+        for (Lane lane : lanes.values()) {
+            Ticket head = lane.queue.peek();
+            if (head == null || (waiting > 1 && share < 1 && inFlight > 0 && lane.inFlight > share * inFlight)) {
+                continue;
+            }
+            if (best == null) {
+                best = lane;
+                continue;
+            }
+            Ticket other = best.queue.peek();
+            if (head.priority != other.priority) {
+                if (head.priority > other.priority) {
+                    best = lane;
+                }
+            } else if (lane.finish != best.finish) {
+                if (lane.finish < best.finish) {
+                    best = lane;
+                }
+            } else if (head.sequence < other.sequence) {
+                best = lane;
+            }
+        }
+        return best;
+    }
+
+    private void release(Ticket ticket)
+    {
+        boolean retry;
+        synchronized (this) {
+            if (ticket.released) {
+                return;
+            }
+            ticket.released = true;
+            if (!ticket.started) {
+                return;
+            }
+            Lane lane = lanes.get(ticket.storageClass);
+            lane.inFlight--;
+            inFlight--;
+            prune(ticket.storageClass, lane);
+            retry = deferred > 0;
+            if (retry) {
+                deferred--;
+            }
+        }
+        if (retry) {
+            drain();
+        }
+    }
+
+    private void drain()
+    {
+        try {
+            stage.execute(this::runNext);
+        } catch (RejectedExecutionException ignored) {
+            /* Shutting down. */
+        }
+    }
+
+    private void prune(String storageClass, Lane lane)
+    {
+        if (lane.queue.isEmpty() && lane.inFlight == 0) {
+            lanes.remove(storageClass);
+        }
+    }
+}
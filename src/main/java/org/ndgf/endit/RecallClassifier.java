@@ -0,0 +1,69 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.dcache.vehicles.FileAttributes;
+
+/**
+ * Classifies recalls as interactive or bulk.
+ *
+ * A recall is interactive if its storage class or its path matches the configured
+ * patterns. Interactive recalls are published to Endit before queued bulk recalls
+ * and are marked with a higher priority in the request.
+ */
+class RecallClassifier
+{
+    static final int BULK = 0;
+    static final int INTERACTIVE = 1;
+
+    private volatile Pattern storageClasses;
+    private volatile Pattern paths;
+
+    /**
+     * @param storageClasses pattern matching the storage classes of interactive recalls, or null
+     * @param paths pattern matching the paths of interactive recalls, or null
+     */
+    void configure(Pattern storageClasses, Pattern paths)
+    {
+        this.storageClasses = storageClasses;
+        this.paths = paths;
+    }
+
+    int classify(FileAttributes fileAttributes)
+    {
+        Pattern storageClasses = this.storageClasses;
+        if (storageClasses != null) {
+            String storageClass = fileAttributes.getStorageClass();
+            if (storageClass != null && storageClasses.matcher(storageClass).matches()) {
+                return INTERACTIVE;
+            }
+        }
+        Pattern paths = this.paths;
+        if (paths != null) {
+            Map<String, String> map = fileAttributes.getStorageInfo().getMap();
+            String path = map.get("path");
+            if (path != null && paths.matcher(path).matches()) {
+                return INTERACTIVE;
+            }
+        }
+        return BULK;
+    }
+}
@@ -18,10 +18,8 @@
 package org.ndgf.endit;
 
 import com.google.common.base.Splitter;
-import java.nio.charset.StandardCharsets;
 import java.io.IOException;
 import java.net.URI;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.Callable;
 
@@ -31,28 +29,32 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 class RemoveTask implements Callable<Void>
 {
-    private final RemoveRequest request;
+    private final URI uri;
     private final Path trashDir;
 
     public RemoveTask(RemoveRequest request, Path trashDir)
     {
-        this.request = request;
+        this(request.getUri(), trashDir);
+    }
+
+    public RemoveTask(URI uri, Path trashDir)
+    {
+        this.uri = uri;
         this.trashDir = trashDir;
     }
 
     @Override
     public Void call() throws IOException
     {
-        URI uri = request.getUri();
         String id = getPnfsId(uri);
 
         /* Tell Endit to remove it from tape.
          */
-        Files.write(trashDir.resolve(id), uri.toASCIIString().getBytes(StandardCharsets.UTF_8));
+        EnditFiles.write(trashDir.resolve(id), uri.toASCIIString());
         return null;
     }
 
-    private String getPnfsId(URI uri)
+    static String getPnfsId(URI uri)
     {
         String query = uri.getQuery();
         checkArgument(query != null, "URI lacks query part");
@@ -0,0 +1,73 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Future of a request that is polled by a task once it has been published.
+ *
+ * Cancelling the request before its task is scheduled cancels the steps leading
+ * up to the publication. Once the task is scheduled, the request can only be
+ * cancelled if the task can be aborted, so cancellation is delegated to the future
+ * of the task and reports whether the abort succeeded; cancelling the future of
+ * the whole request instead would report the request as cancelled even if Endit
+ * already served it.
+ *
+ * @param <V> The result type returned by this Future's <tt>get</tt> method
+ */
+class RequestFuture<V> extends AbstractFuture<V>
+{
+    private ListenableFuture<V> scheduled;
+
+    /**
+     * Completes this Future with the given future of the whole request.
+     */
+    RequestFuture<V> follow(ListenableFuture<V> request)
+    {
+        setFuture(request);
+        return this;
+    }
+
+    /**
+     * Registers the future of the scheduled task of the request. Must be called
+     * before returning the future from the step that schedules the task.
+     */
+    synchronized ListenableFuture<V> scheduled(ListenableFuture<V> future)
+    {
+        scheduled = future;
+        if (isCancelled()) {
+            future.cancel(true);
+        }
+        return future;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        ListenableFuture<V> scheduled;
+        synchronized (this) {
+            scheduled = this.scheduled;
+            if (scheduled == null) {
+                return super.cancel(mayInterruptIfRunning);
+            }
+        }
+        return scheduled.cancel(mayInterruptIfRunning);
+    }
+}
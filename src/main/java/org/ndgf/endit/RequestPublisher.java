@@ -0,0 +1,59 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+
+/**
+ * Publishes stage and flush requests to the Endit daemon.
+ *
+ * Implementations define the on-disk representation of requests in the
+ * request directory.
+ */
+interface RequestPublisher
+{
+    /**
+     * Publishes a request for the file with the given pnfsid.
+     */
+    void publish(String id, JsonObject request) throws IOException;
+
+    /**
+     * Called when the request for the given pnfsid has completed.
+     */
+    void completed(String id) throws IOException;
+
+    /**
+     * Withdraws the request for the given pnfsid.
+     *
+     * @return true if a request was withdrawn, false if no such request was published
+     */
+    boolean withdraw(String id) throws IOException;
+
+    /**
+     * Returns a failure reported by Endit for the request of the given pnfsid, or
+     * null if no failure has been reported. A reported failure is only returned once.
+     */
+    EnditException getFailure(String id);
+
+    /**
+     * Releases any resources held by the publisher.
+     */
+    void shutdown();
+}
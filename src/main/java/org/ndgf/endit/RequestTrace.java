@@ -0,0 +1,139 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring buffer of the most recent lifecycle events of requests.
+ *
+ * Recording is lock-free and costs a counter increment and a small allocation, so
+ * the trace is always on. Once the buffer is full, the oldest events are overwritten.
+ */
+class RequestTrace
+{
+    /**
+     * Lifecycle events of a request.
+     */
+    enum Event
+    {
+        /** A task was created for the request. */
+        CREATED,
+        /** The request was published to Endit. */
+        REQUEST_WRITTEN,
+        /** The file was found in the in directory or was removed from the out directory. */
+        FILE_SEEN,
+        /** A file was found in the in directory, but it does not have the expected size yet. */
+        SIZE_MISMATCH,
+        /** The arrival check of a staged file of the expected size started. */
+        GRACE,
+        /** The arrival check found a staged file of the expected size still being written. */
+        INCOMPLETE,
+        /** The file was moved into the pool. */
+        MOVED,
+        /** Endit reported an error. */
+        ERROR_READ,
+        /** A transient failure was reported by Endit and the request will be published again. */
+        RETRY,
+        /** The files of the request were removed. */
+        ABORTED,
+        /** The request succeeded. */
+        COMPLETED,
+        /** The request failed. */
+        FAILED,
+        /** The request was cancelled. */
+        CANCELLED
+    }
+
+    private static class Entry
+    {
+        final long time;
+        final String id;
+        final Event event;
+        final String detail;
+
+        Entry(long time, String id, Event event, String detail)
+        {
+            this.time = time;
+            this.id = id;
+            this.event = event;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString()
+        {
+            String s = Instant.ofEpochMilli(time) + " " + id + " " + event;
+            return (detail == null) ? s : s + " " + detail;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong next = new AtomicLong();
+    private final int mask;
+
+    /**
+     * @param capacity number of events kept; rounded up to a power of two
+     */
+    RequestTrace(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        entries = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    void record(String id, Event event)
+    {
+        record(id, event, null);
+    }
+
+    void record(String id, Event event, String detail)
+    {
+        int index = (int) (next.getAndIncrement() & mask);
+        entries.lazySet(index, new Entry(System.currentTimeMillis(), id, event, detail));
+    }
+
+    /**
+     * Returns the recorded events, oldest first.
+     */
+    List<String> dump()
+    {
+        return dump(null);
+    }
+
+    /**
+     * Returns the recorded events of the given pnfsid, oldest first.
+     */
+    List<String> dump(String id)
+    {
+        long end = next.get();
+        long start = Math.max(0, end - entries.length());
+        List<String> lines = new ArrayList<>();
+        for (long i = start; i < end; i++) {
+            Entry entry = entries.get((int) (i & mask));
+            if (entry != null && (id == null || entry.id.equals(id))) {
+                lines.add(entry.toString());
+            }
+        }
+        return lines;
+    }
+}
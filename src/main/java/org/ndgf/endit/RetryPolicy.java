@@ -0,0 +1,73 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failures reported by Endit are retried by the provider and when.
+ *
+ * Failures are identified by the return code reported by Endit. Retries back off
+ * exponentially with jitter.
+ */
+class RetryPolicy
+{
+    private volatile Set<Integer> codes = Set.of();
+    private volatile int attempts;
+    private volatile long delay;
+    private volatile long maxDelay;
+
+    /**
+     * @param codes return codes of transient failures
+     * @param attempts maximum number of retries of a request
+     * @param delay delay in milliseconds before the first retry
+     * @param maxDelay maximum delay in milliseconds between retries
+     */
+    void configure(Set<Integer> codes, int attempts, long delay, long maxDelay)
+    {
+        this.codes = Set.copyOf(codes);
+        this.attempts = attempts;
+        this.delay = delay;
+        this.maxDelay = maxDelay;
+    }
+
+    boolean isEnabled()
+    {
+        return attempts > 0 && !codes.isEmpty();
+    }
+
+    /**
+     * Returns whether a request that failed with the given exception after the given
+     * number of retries is to be retried.
+     */
+    boolean shouldRetry(EnditException e, int retries)
+    {
+        return retries < attempts && codes.contains(e.getReturnCode());
+    }
+
+    /**
+     * Returns the delay in milliseconds before the given retry, counting from 1.
+     */
+    long getDelay(int retry)
+    {
+        int shift = Math.min(retry - 1, Long.SIZE - 2);
+        long backoff = (delay > maxDelay >> shift) ? maxDelay : delay << shift;
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
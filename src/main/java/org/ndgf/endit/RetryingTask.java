@@ -0,0 +1,181 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decorates a task to retry transient failures reported by Endit.
+ *
+ * When polling the task fails with a transient failure, the failure is not
+ * propagated. Instead the request is published again once the back off delay
+ * has passed, keeping the nearline request, its allocated space and the task.
+ * The publication goes through the executor of the original publication, so it
+ * is ordered with the other publications by priority and storage class.
+ *
+ * @param <T> the result type of the task
+ */
+class RetryingTask<T> implements PollingTask<T>
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryingTask.class);
+
+    private final PollingTask<T> task;
+    private final RetryPolicy policy;
+    private final RequestPublisher publisher;
+    private final EnditMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final Executor publication;
+    private final Consumer<String> poll;
+    private int retries;
+    private long retryAt;
+    private ScheduledFuture<?> wakeup;
+    private boolean aborted;
+
+    /** Outcome of the last publication, until it is picked up by a poll. */
+    private T restarted;
+    private Exception restartFailure;
+
+    /**
+     * @param publication executor of the publications of the request; used to
+     *                    publish the request again once the back off delay has passed
+     * @param poll polls the task of the given pnfsid; used to report the outcome of
+     *             publishing the request again
+     */
+    RetryingTask(PollingTask<T> task, RetryPolicy policy, RequestPublisher publisher, EnditMetrics metrics,
+                 ScheduledExecutorService scheduler, Executor publication, Consumer<String> poll)
+    {
+        this.task = task;
+        this.policy = policy;
+        this.publisher = publisher;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+        this.publication = publication;
+        this.poll = poll;
+    }
+
+    @Override
+    public String getId()
+    {
+        return task.getId();
+    }
+
+    @Override
+    public Action getAction()
+    {
+        return task.getAction();
+    }
+
+    @Override
+    public T start() throws Exception
+    {
+        return task.start();
+    }
+
+    @Override
+    public synchronized T poll() throws Exception
+    {
+        if (retryAt != 0) {
+            return null;
+        }
+        if (restartFailure != null) {
+            Exception e = restartFailure;
+            restartFailure = null;
+            throw e;
+        }
+        if (restarted != null) {
+            T result = restarted;
+            restarted = null;
+            return result;
+        }
+        try {
+            return task.poll();
+        } catch (EnditException e) {
+            if (!policy.shouldRetry(e, retries)) {
+                throw e;
+            }
+            retries++;
+            String id = task.getId();
+            publisher.completed(id);
+            long delay = policy.getDelay(retries);
+            retryAt = System.currentTimeMillis() + delay;
+            LOGGER.info("Retrying {} in {} ms after transient failure {}: {}", id, delay, e.getReturnCode(), e.getMessage());
+            metrics.trace(id, RequestTrace.Event.RETRY, "attempt " + retries + " in " + delay + " ms after " + e.getReturnCode());
+            wakeup = scheduler.schedule(() -> publication.execute(() -> MetadataBudget.deferring(this::restart)),
+                                        delay, TimeUnit.MILLISECONDS);
+            return null;
+        }
+    }
+
+    /**
+     * Publishes the request again, unless the task was aborted in the meantime. The
+     * outcome is picked up by the next poll, which is requested right away if the
+     * publication completed or failed the task.
+     */
+    private void restart()
+    {
+        synchronized (this) {
+            if (aborted || retryAt == 0) {
+                return;
+            }
+            retryAt = 0;
+            wakeup = null;
+            try {
+                restarted = MetadataBudget.publishing(task::start);
+            } catch (Exception e) {
+                restartFailure = e;
+            }
+            if (restarted == null && restartFailure == null) {
+                return;
+            }
+        }
+        poll.accept(task.getId());
+    }
+
+    /**
+     * Aborts the task. While waiting for the back off delay to pass, the request is
+     * not published, so the task is aborted without touching it and the pending
+     * publication is cancelled.
+     */
+    @Override
+    public synchronized boolean abort() throws Exception
+    {
+        if (retryAt != 0) {
+            aborted = true;
+            retryAt = 0;
+            if (wakeup != null) {
+                wakeup.cancel(false);
+                wakeup = null;
+            }
+            return true;
+        }
+        return task.abort();
+    }
+
+    @Override
+    public void cleanup() throws Exception
+    {
+        task.cleanup();
+    }
+}
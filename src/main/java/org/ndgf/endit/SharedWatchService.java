@@ -0,0 +1,230 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A reference counted WatchService shared by all Endit nearline storages of a file
+ * system.
+ *
+ * Every pool on a host watches the same kind of directories. Rather than having
+ * one watch service and watcher thread per nearline storage, all storages on the
+ * same file system share a single watch service and a single thread dispatching
+ * events to the listeners registered for a directory.
+ *
+ * Listeners are called on the dispatching thread and must not block.
+ */
+class SharedWatchService
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedWatchService.class);
+
+    /** Instances by file system. Guarded by the class. */
+    private static final Map<FileSystem, SharedWatchService> INSTANCES = new HashMap<>();
+
+    /**
+     * Listener for events on a watched directory.
+     */
+    interface Listener
+    {
+        /** Called when an event occurred on the given file. */
+        void changed(Path path);
+
+        /** Called when events on the directory may have been lost. */
+        void overflow();
+    }
+
+    /**
+     * Registration of a listener on a directory.
+     */
+    class Registration
+    {
+        private final Path dir;
+        private final Listener listener;
+        private final Set<WatchEvent.Kind<?>> kinds;
+
+        private Registration(Path dir, Listener listener, Set<WatchEvent.Kind<?>> kinds)
+        {
+            this.dir = dir;
+            this.listener = listener;
+            this.kinds = kinds;
+        }
+
+        public void cancel()
+        {
+            unregister(this);
+        }
+    }
+
+    private final FileSystem fileSystem;
+    private final WatchService watcher;
+    private final Map<Path, List<Registration>> registrations = new HashMap<>();
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private int references;
+
+    private SharedWatchService(FileSystem fileSystem) throws IOException
+    {
+        this.fileSystem = fileSystem;
+        watcher = fileSystem.newWatchService();
+        Thread thread = new Thread(this::run, "endit-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the shared watch service of the given file system. Every call must be
+     * matched by a call to {@link #release}.
+     */
+    static synchronized SharedWatchService acquire(FileSystem fileSystem) throws IOException
+    {
+        SharedWatchService service = INSTANCES.get(fileSystem);
+        if (service == null) {
+            service = new SharedWatchService(fileSystem);
+            INSTANCES.put(fileSystem, service);
+        }
+        service.references++;
+        return service;
+    }
+
+    /**
+     * Releases a reference obtained through {@link #acquire}. The watch service is
+     * closed once the last reference has been released.
+     */
+    void release()
+    {
+        synchronized (SharedWatchService.class) {
+            if (--references > 0) {
+                return;
+            }
+            INSTANCES.remove(fileSystem);
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close watch service: {}", e.toString());
+        }
+    }
+
+    /**
+     * Registers a listener for events of the given kinds on a directory.
+     */
+    synchronized Registration register(Path dir, Listener listener, WatchEvent.Kind<?>... kinds)
+            throws IOException
+    {
+        Registration registration = new Registration(dir, listener, ImmutableSet.copyOf(kinds));
+        List<Registration> list = registrations.computeIfAbsent(dir, d -> new CopyOnWriteArrayList<>());
+        list.add(registration);
+        try {
+            updateKey(dir, list);
+        } catch (IOException e) {
+            unregister(registration);
+            throw e;
+        }
+        return registration;
+    }
+
+    private synchronized void unregister(Registration registration)
+    {
+        List<Registration> list = registrations.get(registration.dir);
+        if (list != null && list.remove(registration)) {
+            try {
+                updateKey(registration.dir, list);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to update watch on {}: {}", registration.dir, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Registers the directory with the union of the event kinds of its listeners, or
+     * cancels the watch if no listeners remain.
+     */
+    private void updateKey(Path dir, List<Registration> list) throws IOException
+    {
+        if (list.isEmpty()) {
+            registrations.remove(dir);
+            WatchKey key = keys.remove(dir);
+            if (key != null) {
+                key.cancel();
+            }
+        } else {
+            Set<WatchEvent.Kind<?>> kinds = new HashSet<>();
+            for (Registration registration : list) {
+                kinds.addAll(registration.kinds);
+            }
+            keys.put(dir, dir.register(watcher, kinds.toArray(new WatchEvent.Kind<?>[0])));
+        }
+    }
+
+    private void run()
+    {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                List<Registration> list;
+                synchronized (this) {
+                    list = registrations.get(dir);
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (list != null) {
+                        dispatch(dir, list, event);
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (this) {
+                        keys.remove(dir, key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    private void dispatch(Path dir, List<Registration> list, WatchEvent<?> event)
+    {
+        for (Registration registration : list) {
+            try {
+                if (event.kind().equals(StandardWatchEventKinds.OVERFLOW)) {
+                    registration.listener.overflow();
+                } else if (registration.kinds.contains(event.kind())) {
+                    registration.listener.changed(dir.resolve((Path) event.context()));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Failed to dispatch event on {}: {}", dir, e.toString(), e);
+            }
+        }
+    }
+}
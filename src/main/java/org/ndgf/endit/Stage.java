@@ -0,0 +1,143 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A separately sized pool of threads for one kind of work.
+ *
+ * The nearline storages keep control work (timers and future continuations)
+ * apart from file system I/O, so that a stalled file system cannot delay timers
+ * or cause the number of threads to grow without bounds.
+ */
+class Stage
+{
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final ListeningExecutorService executor;
+
+    private Stage(String name, ThreadPoolExecutor pool, ListeningExecutorService executor)
+    {
+        this.name = name;
+        this.pool = pool;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a stage with a fixed number of threads and an unbounded queue.
+     */
+    static Stage fixed(String name, int threads)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                         new LinkedBlockingQueue<>(), threadFactory(name));
+        return new Stage(name, pool, MoreExecutors.listeningDecorator(pool));
+    }
+
+    /**
+     * Creates a stage with a fixed number of threads able to schedule delayed work.
+     */
+    static Stage scheduled(String name, int threads)
+    {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, threadFactory(name));
+        pool.setRemoveOnCancelPolicy(true);
+        return new Stage(name, pool, MoreExecutors.listeningDecorator(pool));
+    }
+
+    private static ThreadFactory threadFactory(String name)
+    {
+        return new ThreadFactoryBuilder().setNameFormat("endit-" + name + "-%d").build();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public ListeningExecutorService executor()
+    {
+        return executor;
+    }
+
+    /**
+     * Returns the executor of a stage created by {@link #scheduled}.
+     */
+    public ListeningScheduledExecutorService scheduler()
+    {
+        return (ListeningScheduledExecutorService) executor;
+    }
+
+    public void execute(Runnable command)
+    {
+        executor.execute(command);
+    }
+
+    public void setThreads(int threads)
+    {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    public int getThreads()
+    {
+        return pool.getCorePoolSize();
+    }
+
+    /** Returns the number of threads currently executing work. */
+    public int getActiveCount()
+    {
+        return pool.getActiveCount();
+    }
+
+    /** Returns the number of queued tasks, including scheduled tasks not yet due. */
+    public int getQueueDepth()
+    {
+        return pool.getQueue().size();
+    }
+
+    public long getCompletedCount()
+    {
+        return pool.getCompletedTaskCount();
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " [threads=" + getThreads() + ", active=" + getActiveCount()
+               + ", queued=" + getQueueDepth() + ", completed=" + getCompletedCount() + "]";
+    }
+}
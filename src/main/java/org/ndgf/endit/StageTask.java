@@ -19,17 +19,18 @@
  */
 package org.ndgf.endit;
 
-import java.nio.charset.StandardCharsets;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,101 +39,173 @@ import org.dcache.pool.nearline.spi.StageRequest;
 import org.dcache.util.Checksum;
 import org.dcache.vehicles.FileAttributes;
 
-import static java.util.Arrays.asList;
 import com.google.gson.JsonObject;
-import org.apache.commons.io.FileUtils;
 
 class StageTask implements PollingTask<Set<Checksum>>
 {
     public static final int ERROR_GRACE_PERIOD = 1000;
 
-    public static final int GRACE_PERIOD = 1000;
-
-    private static final int PID = CLibrary.INSTANCE.getpid();
+    static final int PID = CLibrary.INSTANCE.getpid();
 
     private final static Logger LOGGER = LoggerFactory.getLogger(StageTask.class);
     
-    private final Path file;
-    private final Path inFile;
-    private final Path errorFile;
-    private final Path requestFile;
-    private final long size;
-    private final String storageClass;
-    private final String path;
-
-    StageTask(StageRequest request, Path requestDir, Path inDir)
+    private final StageRequest request;
+    private final RequestPublisher publisher;
+    private final Path requestDir;
+    private final Path inDir;
+    private final String id;
+    private final EnditMetrics metrics;
+    private final ArrivalDetector arrivalDetector;
+    private final int priority;
+
+    /**
+     * Last state traced by a poll, so that polls finding the file in the same state
+     * do not flood the trace. Only accessed by polls, which never run concurrently.
+     */
+    private RequestTrace.Event traced;
+
+    /**
+     * Queued recalls can number in the hundreds of thousands, so the task only keeps
+     * references to the request and the shared directories; paths and attributes are
+     * derived on demand.
+     */
+    StageTask(StageRequest request, RequestPublisher publisher, Path requestDir, Path inDir, EnditMetrics metrics,
+              ArrivalDetector arrivalDetector, int priority)
     {
-        file = request.getFile().toPath();
-        FileAttributes fileAttributes = request.getFileAttributes();
-        String id = fileAttributes.getPnfsId().toString();
-        size = fileAttributes.getSize();
-        inFile = inDir.resolve(id);
-        errorFile = requestDir.resolve(id + ".err");
-        requestFile = requestDir.resolve(id);
-        storageClass = fileAttributes.getStorageClass();
-        path = request.getFileAttributes().getStorageInfo().getMap().get("path");
+        this.priority = priority;
+        this.metrics = metrics;
+        this.arrivalDetector = arrivalDetector;
+        this.request = request;
+        this.publisher = publisher;
+        this.requestDir = requestDir;
+        this.inDir = inDir;
+        id = request.getFileAttributes().getPnfsId().toString();
+        metrics.trace(id, RequestTrace.Event.CREATED, "stage");
     }
 
     @Override
-    public List<Path> getFilesToWatch()
+    public String getId()
     {
-        return asList(errorFile, inFile);
+        return id;
+    }
+
+    @Override
+    public Action getAction()
+    {
+        return Action.RECALL;
     }
 
     @Override
     public Set<Checksum> start() throws Exception
     {
-        if (Files.isRegularFile(inFile) && Files.size(inFile) == size) {
-            Files.move(inFile, file, StandardCopyOption.ATOMIC_MOVE);
+        FileAttributes fileAttributes = request.getFileAttributes();
+        long size = fileAttributes.getSize();
+        Path inFile = inDir.resolve(id);
+        if (EnditFiles.isRegularFile(inFile) && EnditFiles.size(inFile) == size) {
+            EnditFiles.move(inFile, request.getFile().toPath(), StandardCopyOption.ATOMIC_MOVE);
+            metrics.trace(id, RequestTrace.Event.MOVED, "already staged");
             return Collections.emptySet();
         }
-  
+
         JsonObject jsObj = new JsonObject();
         jsObj.addProperty("file_size", size);
         jsObj.addProperty("parent_pid", PID);
         jsObj.addProperty("time", System.currentTimeMillis() / 1000);
-        jsObj.addProperty("storage_class", storageClass);
+        jsObj.addProperty("storage_class", fileAttributes.getStorageClass());
         jsObj.addProperty("action", "recall");
-        jsObj.addProperty("path", path);
-    	    	
-        FileUtils.write(requestFile.toFile(), jsObj.toString(),  StandardCharsets.UTF_8);
- 	
+        jsObj.addProperty("priority", priority);
+        jsObj.addProperty("path", fileAttributes.getStorageInfo().getMap().get("path"));
+
+        publisher.publish(id, jsObj);
+        metrics.trace(id, RequestTrace.Event.REQUEST_WRITTEN);
+
         return null;
     }
 
     @Override
     public Set<Checksum> poll() throws IOException, InterruptedException, EnditException
     {
-        if (Files.exists(errorFile)) {
+        EnditException failure = publisher.getFailure(id);
+        if (failure != null) {
+            metrics.trace(id, RequestTrace.Event.ERROR_READ, failure.getMessage());
+            throw failure;
+        }
+        Path inFile = inDir.resolve(id);
+        Path errorFile = requestDir.resolve(id + ".err");
+        if (EnditFiles.exists(errorFile)) {
             List<String> lines;
             try {
                 Thread.sleep(ERROR_GRACE_PERIOD);
-                lines = Files.readAllLines(errorFile, StandardCharsets.UTF_8);
+                lines = EnditFiles.readAllLines(errorFile);
             } finally {
-                Files.deleteIfExists(inFile);
-                Files.deleteIfExists(errorFile);
-                Files.deleteIfExists(requestFile);
+                EnditFiles.deleteIfExists(inFile);
+                EnditFiles.deleteIfExists(errorFile);
+                publisher.completed(id);
             }
-            throw EnditException.create(lines);
+            EnditException error = EnditException.create(lines);
+            metrics.trace(id, RequestTrace.Event.ERROR_READ, error.getMessage());
+            throw error;
         }
-        if (Files.isRegularFile(inFile) && Files.size(inFile) == size) {            
-            Files.deleteIfExists(requestFile);            
-            Thread.sleep(GRACE_PERIOD); 
+        BasicFileAttributes attributes;
+        try {
+            attributes = EnditFiles.readAttributes(inFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long size = request.getFileAttributes().getSize();
+        if (attributes.isRegularFile() && attributes.size() == size) {
+            if (traced != RequestTrace.Event.INCOMPLETE) {
+                metrics.trace(id, RequestTrace.Event.FILE_SEEN, size + " bytes");
+                metrics.trace(id, RequestTrace.Event.GRACE, arrivalDetector.getStrategy().name().toLowerCase());
+            }
+            long lag = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+            long start = System.nanoTime();
+            boolean complete = arrivalDetector.isComplete(inFile, attributes);
+            metrics.get(EnditMetrics.Phase.GRACE).recordSince(start);
+            if (!complete) {
+                traceChange(RequestTrace.Event.INCOMPLETE, "modified during the quiet period");
+                return null;
+            }
+            metrics.get(EnditMetrics.Phase.DETECTION_LAG).record(lag, TimeUnit.MILLISECONDS);
+            publisher.completed(id);
+            start = System.nanoTime();
             try {
-                Files.move(inFile, file, StandardCopyOption.ATOMIC_MOVE);
+                EnditFiles.move(inFile, request.getFile().toPath(), StandardCopyOption.ATOMIC_MOVE);
+                metrics.trace(id, RequestTrace.Event.MOVED);
             } catch (IOException e) {
                 System.err.println(e);
+                metrics.trace(id, RequestTrace.Event.MOVED, e.toString());
             }
+            metrics.get(EnditMetrics.Phase.MOVE).recordSince(start);
             return Collections.emptySet();
         }
+        traceChange(RequestTrace.Event.SIZE_MISMATCH, attributes.size() + " of " + size + " bytes");
         return null;
     }
 
+    private void traceChange(RequestTrace.Event event, String detail)
+    {
+        if (traced != event) {
+            traced = event;
+            metrics.trace(id, event, detail);
+        }
+    }
+
     @Override
     public boolean abort() throws Exception
     {
-       return Files.deleteIfExists(requestFile) && Files.deleteIfExists(errorFile) && Files.deleteIfExists(inFile);
-      
+        if (!publisher.withdraw(id)) {
+            return false;
+        }
+        metrics.trace(id, RequestTrace.Event.ABORTED);
+        return true;
+    }
+
+    @Override
+    public void cleanup() throws IOException
+    {
+        EnditFiles.deleteIfExists(requestDir.resolve(id + ".err"));
+        EnditFiles.deleteIfExists(inDir.resolve(id));
     }
 
     private interface CLibrary extends Library
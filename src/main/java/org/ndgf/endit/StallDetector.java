@@ -0,0 +1,130 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects when Endit stops making progress.
+ *
+ * Progress is either reported explicitly, e.g. when a task completes, or observed
+ * in the Endit directories. Endit creates the files in the in directory, so a
+ * change of its modification time is progress. The provider itself creates the
+ * files in the out and request directories and Endit consumes them, so their
+ * modification time says little; instead a shrinking number of entries is
+ * progress. This lets a backlog of flushes alone leave the stalled state without
+ * waiting for a task to be polled at the sentinel period.
+ */
+class StallDetector
+{
+    private final long window;
+    private final List<Path> arrivals;
+    private final List<Path> departures;
+    private final FileTime[] modified;
+    private final long[] entries;
+    private volatile long lastProgress = System.nanoTime();
+    private volatile boolean stalled;
+
+    /**
+     * @param window time in milliseconds without progress after which Endit is
+     *               considered stalled; 0 disables the detector
+     * @param arrivals directories in which Endit creates files
+     * @param departures directories from which Endit consumes files
+     */
+    StallDetector(long window, List<Path> arrivals, List<Path> departures)
+    {
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.arrivals = arrivals;
+        this.departures = departures;
+        this.modified = new FileTime[arrivals.size()];
+        this.entries = new long[departures.size()];
+    }
+
+    boolean isStalled()
+    {
+        return stalled;
+    }
+
+    void progress()
+    {
+        lastProgress = System.nanoTime();
+    }
+
+    /**
+     * Checks the directories for changes and updates the stall state.
+     *
+     * As counting lists the whole directory, entries are only counted once no
+     * progress has been seen for half the window.
+     *
+     * @param busy whether any requests are waiting for Endit; an idle provider
+     *             does not expect progress
+     * @return true if the stall state changed
+     */
+    synchronized boolean check(boolean busy) throws IOException
+    {
+        if (window == 0) {
+            return false;
+        }
+        for (int i = 0; i < modified.length; i++) {
+            FileTime time = EnditFiles.readAttributes(arrivals.get(i)).lastModifiedTime();
+            if (!time.equals(modified[i])) {
+                modified[i] = time;
+                progress();
+            }
+        }
+        if (!busy) {
+            progress();
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (System.nanoTime() - lastProgress <= window / 2) {
+                /* Forget the counts, so that files added meanwhile by the provider
+                 * are not mistaken for a lack of progress later.
+                 */
+                entries[i] = -1;
+            } else {
+                long count = count(departures.get(i));
+                if (count < entries[i]) {
+                    progress();
+                }
+                entries[i] = count;
+            }
+        }
+        boolean stalled = System.nanoTime() - lastProgress > window;
+        if (stalled != this.stalled) {
+            this.stalled = stalled;
+            return true;
+        }
+        return false;
+    }
+
+    private static long count(Path dir) throws IOException
+    {
+        long count = 0;
+        try (DirectoryStream<Path> stream = EnditFiles.newDirectoryStream(dir, "*")) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
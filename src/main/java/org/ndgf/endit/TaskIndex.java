@@ -0,0 +1,268 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact hash index of tasks.
+ *
+ * Uses open addressing with linear probing over two parallel arrays, so an entry
+ * costs two array slots rather than a node object per entry as in
+ * {@link java.util.concurrent.ConcurrentHashMap}. With hundreds of thousands of
+ * queued requests this noticeably reduces heap usage and GC pressure.
+ *
+ * The index is split into segments selected by the hash of the key. Every segment
+ * is a table of its own guarded by its own monitor, so concurrent operations on
+ * different segments do not contend and a resize only copies a single segment.
+ * All operations are short and never block.
+ *
+ * Null keys and values are not supported.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+class TaskIndex<K, V>
+{
+    private static final int SEGMENT_BITS = 5;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    TaskIndex()
+    {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static int hash(Object key)
+    {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segment(int hash)
+    {
+        return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    public V get(K key)
+    {
+        int hash = hash(key);
+        return cast(segment(hash).get(key, hash));
+    }
+
+    public V put(K key, V value)
+    {
+        int hash = hash(key);
+        return cast(segment(hash).put(key, hash, value, false));
+    }
+
+    public V putIfAbsent(K key, V value)
+    {
+        int hash = hash(key);
+        return cast(segment(hash).put(key, hash, value, true));
+    }
+
+    public V remove(K key)
+    {
+        int hash = hash(key);
+        return cast(segment(hash).remove(key, hash, null));
+    }
+
+    public boolean remove(K key, V value)
+    {
+        int hash = hash(key);
+        return segment(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Returns the number of entries. The result is not a snapshot if the index is
+     * modified concurrently.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        for (Segment segment : segments) {
+            if (segment.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the values of the index. Every segment is copied
+     * atomically, the index as a whole is not.
+     */
+    public List<V> values()
+    {
+        List<V> list = new ArrayList<>(size());
+        for (Segment segment : segments) {
+            segment.values(list);
+        }
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(Object value)
+    {
+        return (V) value;
+    }
+
+    private static class Segment
+    {
+        private static final int MIN_CAPACITY = 4;
+
+        private Object[] keys = new Object[MIN_CAPACITY];
+        private Object[] values = new Object[MIN_CAPACITY];
+        private int size;
+
+        synchronized Object get(Object key, int hash)
+        {
+            int i = find(key, hash);
+            return (i < 0) ? null : values[i];
+        }
+
+        /**
+         * Adds or replaces an entry. Returns the previous value or null.
+         */
+        synchronized Object put(Object key, int hash, Object value, boolean onlyIfAbsent)
+        {
+            int i = find(key, hash);
+            if (i >= 0) {
+                Object old = values[i];
+                if (!onlyIfAbsent) {
+                    values[i] = value;
+                }
+                return old;
+            }
+            insert(key, hash, value);
+            return null;
+        }
+
+        /**
+         * Removes the entry of a key, provided it maps to the given value unless
+         * that is null. Returns the removed value or null.
+         */
+        synchronized Object remove(Object key, int hash, Object value)
+        {
+            int i = find(key, hash);
+            if (i < 0 || (value != null && values[i] != value)) {
+                return null;
+            }
+            Object old = values[i];
+            delete(i);
+            return old;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized <V> void values(List<V> list)
+        {
+            for (Object value : values) {
+                if (value != null) {
+                    @SuppressWarnings("unchecked")
+                    V v = (V) value;
+                    list.add(v);
+                }
+            }
+        }
+
+        private int find(Object key, int hash)
+        {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(Object key, int hash, Object value)
+        {
+            if (3 * (size + 1) > 2 * keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        /**
+         * Removes the entry at the given slot, shifting back subsequent entries of
+         * the probe sequence so lookups never need tombstones.
+         */
+        private void delete(int i)
+        {
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    break;
+                }
+                int k = hash(keys[j]) & mask;
+                if ((i < j) ? (i < k && k <= j) : (i < k || k <= j)) {
+                    continue;
+                }
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = null;
+            values[i] = null;
+            size--;
+            if (keys.length > MIN_CAPACITY && 8 * size < keys.length) {
+                resize(keys.length / 2);
+            }
+        }
+
+        private void resize(int capacity)
+        {
+            Object[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new Object[capacity];
+            values = new Object[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], hash(oldKeys[i]), oldValues[i]);
+                }
+            }
+        }
+    }
+}
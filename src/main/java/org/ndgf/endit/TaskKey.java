@@ -0,0 +1,67 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+/**
+ * Key of a task in the task index of a nearline storage.
+ *
+ * A file may be flushed and staged at the same time, and a container may be
+ * migrated while it is recalled, so tasks are identified by the pnfsid (or
+ * container name) together with the kind of request.
+ */
+final class TaskKey
+{
+    final String id;
+    final PollingTask.Action action;
+
+    TaskKey(String id, PollingTask.Action action)
+    {
+        this.id = id;
+        this.action = action;
+    }
+
+    static TaskKey of(PollingTask<?> task)
+    {
+        return new TaskKey(task.getId(), task.getAction());
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TaskKey)) {
+            return false;
+        }
+        TaskKey other = (TaskKey) o;
+        return action == other.action && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * id.hashCode() + action.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return action.name().toLowerCase() + " " + id;
+    }
+}
@@ -0,0 +1,237 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.pool.nearline.spi.RemoveRequest;
+
+/**
+ * Coalesces remove requests into batched trash files.
+ *
+ * Every trash file holds the URIs of many removed files, one per line. A batch is
+ * written once it reaches its size limit or once its oldest entry has waited for
+ * the maximum delay. The future of a remove request completes once its batch has
+ * been synced to disk and atomically renamed into the trash directory.
+ *
+ * Once the writer has been shut down, every added remove is written right away in
+ * a batch of its own.
+ */
+class TrashWriter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrashWriter.class);
+
+    static final String BATCH_PREFIX = "batch-";
+
+    private final Path trashDir;
+    private volatile int maxEntries;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> timer;
+
+    /** Whether a write of a full batch has been queued. Guarded by this. */
+    private boolean writeQueued;
+
+    /** Whether the writer has been shut down. Guarded by this. */
+    private boolean closed;
+
+    /** Entries not yet written. Guarded by this. */
+    private List<Entry> pending = new ArrayList<>();
+
+    /**
+     * @param trashDir Endit trash directory
+     * @param maxEntries maximum number of URIs per trash file
+     * @param maxDelay maximum time in milliseconds a URI waits before being written
+     */
+    TrashWriter(Path trashDir, int maxEntries, long maxDelay)
+    {
+        this.trashDir = trashDir;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("endit-trash-%d").setDaemon(true).build());
+        setLimits(maxEntries, maxDelay);
+    }
+
+    /**
+     * Changes the batching limits. Takes effect for the current batch.
+     */
+    public synchronized void setLimits(int maxEntries, long maxDelay)
+    {
+        if (closed) {
+            return;
+        }
+        this.maxEntries = maxEntries;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        timer = executor.scheduleWithFixedDelay(() -> write(true), maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+    }
+
+    public ListenableFuture<Void> add(RemoveRequest request)
+    {
+        return add(request.getUri());
+    }
+
+    public ListenableFuture<Void> add(URI uri)
+    {
+        try {
+            RemoveTask.getPnfsId(uri);
+        } catch (IllegalArgumentException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+
+        Entry entry = new Entry(uri);
+        boolean queued;
+        boolean full;
+        synchronized (this) {
+            queued = !closed;
+            if (queued) {
+                pending.add(entry);
+            }
+            full = queued && !writeQueued && pending.size() >= maxEntries;
+            writeQueued |= full;
+        }
+        if (!queued) {
+            write(Collections.singletonList(entry));
+        } else if (full) {
+            try {
+                executor.execute(() -> write(false));
+            } catch (RejectedExecutionException e) {
+                write(true);
+            }
+        }
+        return entry.future;
+    }
+
+    /**
+     * Writes all pending entries and stops the writer.
+     */
+    public void shutdown()
+    {
+        synchronized (this) {
+            closed = true;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        executor.shutdown();
+        write(true);
+    }
+
+    /**
+     * Writes the pending entries in batches of at most the maximum number of
+     * entries each.
+     *
+     * @param partial whether to also write the remaining entries if they do not
+     *                fill a batch
+     */
+    private void write(boolean partial)
+    {
+        while (true) {
+            List<Entry> batch;
+            synchronized (this) {
+                if (pending.isEmpty() || (!partial && pending.size() < maxEntries)) {
+                    writeQueued = false;
+                    return;
+                }
+                if (pending.size() <= maxEntries) {
+                    batch = pending;
+                    pending = new ArrayList<>();
+                } else {
+                    List<Entry> head = pending.subList(0, maxEntries);
+                    batch = new ArrayList<>(head);
+                    head.clear();
+                }
+            }
+            write(batch);
+        }
+    }
+
+    private void write(List<Entry> batch)
+    {
+        StringBuilder content = new StringBuilder();
+        for (Entry entry : batch) {
+            content.append(entry.uri.toASCIIString()).append('\n');
+        }
+
+        /* Pools sharing the trash directory must never replace each other's batches. */
+        String name = BATCH_PREFIX + System.currentTimeMillis() + "-" + UUID.randomUUID();
+        Path tmpFile = trashDir.resolve("." + name);
+        try {
+            try (FileChannel channel = EnditFiles.open(tmpFile, StandardOpenOption.CREATE_NEW,
+                                                         StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = StandardCharsets.UTF_8.encode(content.toString());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                EnditFiles.force(channel);
+            }
+            EnditFiles.move(tmpFile, trashDir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel dir = EnditFiles.open(trashDir, StandardOpenOption.READ)) {
+                EnditFiles.force(dir);
+            } catch (IOException e) {
+                LOGGER.debug("Failed to sync {}: {}", trashDir, e.toString());
+            }
+        } catch (IOException e) {
+            try {
+                EnditFiles.deleteIfExists(tmpFile);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            for (Entry entry : batch) {
+                entry.future.setException(e);
+            }
+            return;
+        }
+        for (Entry entry : batch) {
+            entry.future.set(null);
+        }
+    }
+
+    private static class Entry
+    {
+        final URI uri;
+        final SettableFuture<Void> future = SettableFuture.create();
+
+        Entry(URI uri)
+        {
+            this.uri = uri;
+        }
+    }
+}
@@ -19,34 +19,37 @@ package org.ndgf.endit;
 
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Variant of the Endit nearline storage using a WatchService.
+ *
+ * The watch service is shared with all other watching Endit nearline storages on
+ * the same file system.
  */
 public class WatchingEnditNearlineStorage extends AbstractEnditNearlineStorage
 {
     private final static Logger LOGGER = LoggerFactory.getLogger(WatchingEnditNearlineStorage.class);
 
-    private final ConcurrentMap<Path,TaskFuture<?>> tasks = new ConcurrentHashMap<>();
-    private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
-    private Future<?> watchTask;
+    private static final String ERROR_SUFFIX = ".err";
+
+    private final TaskIndex<TaskKey, TaskFuture<?>> tasks = new TaskIndex<>();
+    private final List<SharedWatchService.Registration> registrations = new ArrayList<>();
+    private SharedWatchService watchService;
+    private ScheduledFuture<?> scanTimer;
+    private final AtomicBoolean scanning = new AtomicBoolean();
 
     public WatchingEnditNearlineStorage(String type, String name)
     {
@@ -57,18 +60,12 @@ public class WatchingEnditNearlineStorage extends AbstractEnditNearlineStorage
     public synchronized void configure(Map<String, String> properties) throws IllegalArgumentException
     {
         super.configure(properties);
-        if (watchTask != null) {
-            watchTask.cancel(true);
-            watchTask = executor.submit(new WatchTask());
+        if (watchService != null) {
+            unwatch();
+            watch();
         }
     }
 
-    @Override
-    protected ListeningExecutorService executor()
-    {
-        return executor;
-    }
-
     @Override
     protected <T> ListenableFuture<T> schedule(PollingTask<T> task)
     {
@@ -77,70 +74,177 @@ public class WatchingEnditNearlineStorage extends AbstractEnditNearlineStorage
 
     public synchronized void start()
     {
-        if (watchTask == null) {
-            watchTask = executor.submit(new WatchTask());
+        if (watchService == null) {
+            watch();
         }
     }
 
     @Override
     public synchronized void shutdown()
     {
-        if (watchTask != null) {
-            watchTask.cancel(true);
+        setScanPeriod(0);
+        if (watchService != null) {
+            unwatch();
         }
-        executor.shutdown();
+        cancelAll(tasks.values());
+        shutdownPublishers();
     }
 
-    private class WatchTask implements Runnable
+    private void watch()
     {
-        @Override
-        public void run()
-        {
-            try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
-                outDir.register(watcher, StandardWatchEventKinds.ENTRY_DELETE);
-                inDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
-                requestDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
-
-                pollAll();
-
-                while (!Thread.currentThread().isInterrupted()) {
-                    WatchKey key = watcher.take();
-                    Path dir = (Path) key.watchable();
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        if (event.kind().equals(StandardWatchEventKinds.OVERFLOW)) {
-                            pollAll();
-                        } else {
-                            Path fileName = (Path) event.context();
-                            poll(dir.resolve(fileName));
-                        }
-                    }
-                    if (!key.reset()) {
-                        // TODO
-                    }
-                }
-            } catch (InterruptedException ignored) {
-            } catch (IOException e) {
-                LOGGER.warn("I/O error while watching Endit directories: {}", e.toString());
-            } finally {
-                for (TaskFuture<?> task : tasks.values()) {
-                    task.cancel(true);
-                }
+        Watcher watcher = new Watcher();
+        try {
+            watchService = SharedWatchService.acquire(outDir.getFileSystem());
+            registrations.add(watchService.register(outDir, watcher, StandardWatchEventKinds.ENTRY_DELETE));
+            registrations.add(watchService.register(inDir, watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+            registrations.add(watchService.register(requestDir, watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE));
+        } catch (IOException e) {
+            LOGGER.warn("I/O error while watching Endit directories: {}", e.toString());
+        }
+        io.execute(this::pollAll);
+    }
+
+    private void unwatch()
+    {
+        for (SharedWatchService.Registration registration : registrations) {
+            registration.cancel();
+        }
+        registrations.clear();
+        watchService.release();
+        watchService = null;
+    }
+
+    @Override
+    protected void poll(TaskKey key)
+    {
+        TaskFuture<?> task = tasks.get(key);
+        if (task != null) {
+            io.execute(() -> MetadataBudget.deferring(task::poll));
+        }
+    }
+
+    /**
+     * Polls the task with the given key because of a file event.
+     */
+    private void pollChanged(TaskKey key)
+    {
+        TaskFuture<?> task = tasks.get(key);
+        if (task != null) {
+            io.execute(() -> polled(MetadataBudget.deferring(task::poll)));
+        }
+    }
+
+    @Override
+    protected void fail(TaskKey key, EnditException cause)
+    {
+        TaskFuture<?> task = tasks.get(key);
+        if (task != null) {
+            io.execute(() -> MetadataBudget.deferring(() -> task.fail(cause)));
+        }
+    }
+
+    private void pollAll()
+    {
+        EnditEvents.pollAll(name, tasks.values(), task -> MetadataBudget.deferring(task::poll));
+    }
+
+    /**
+     * Polls all tasks at the given period in addition to watching the Endit
+     * directories, as a fallback for file events that are not delivered. A tick
+     * is skipped while the previous scan is still running, so slow scans do not
+     * pile up on the I/O stage.
+     *
+     * @param period scan period in milliseconds; 0 disables the scan
+     */
+    protected synchronized void setScanPeriod(long period)
+    {
+        if (scanTimer != null) {
+            scanTimer.cancel(false);
+            scanTimer = null;
+        }
+        if (period > 0) {
+            scanTimer = control.scheduler().scheduleWithFixedDelay(this::startScan,
+                                                                   period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void startScan()
+    {
+        if (scanning.compareAndSet(false, true)) {
+            try {
+                io.execute(this::scan);
+            } catch (RejectedExecutionException e) {
+                scanning.set(false);
             }
         }
+    }
+
+    private void scan()
+    {
+        try {
+            int[] completed = new int[1];
+            EnditEvents.pollAll(name, tasks.values(), task -> {
+                if (MetadataBudget.deferring(task::poll)) {
+                    completed[0]++;
+                }
+            });
+            scanned(completed[0]);
+        } finally {
+            scanning.set(false);
+        }
+    }
 
-        private void poll(Path path)
+    /**
+     * Called after a task was polled because of a file event. Polls requested by
+     * Endit notifications or retries are not reported.
+     *
+     * @param completed whether the poll completed the task
+     */
+    protected void polled(boolean completed)
+    {
+    }
+
+    /**
+     * Called after a fallback scan.
+     *
+     * @param completed the number of tasks completed by the scan, i.e. whose
+     *                  completion was not noticed through a file event
+     */
+    protected void scanned(int completed)
+    {
+    }
+
+    /**
+     * Receives events on the Endit directories from the shared watch service and
+     * polls the affected tasks on the I/O stage.
+     *
+     * Files in the in and out directories are named by the pnfsid. In the request
+     * directory only error files, named by the pnfsid with the suffix .err, are of
+     * interest. Only flushes are affected by changes in the out directory, and only
+     * stages by changes in the other two.
+     */
+    private class Watcher implements SharedWatchService.Listener
+    {
+        @Override
+        public void changed(Path path)
         {
-            TaskFuture<?> task = tasks.get(path);
-            if (task != null) {
-                task.poll();
+            String name = path.getFileName().toString();
+            Path dir = path.getParent();
+            if (dir.equals(requestDir)) {
+                if (!name.endsWith(ERROR_SUFFIX)) {
+                    return;
+                }
+                name = name.substring(0, name.length() - ERROR_SUFFIX.length());
             }
+            PollingTask.Action action = dir.equals(outDir) ? PollingTask.Action.MIGRATE : PollingTask.Action.RECALL;
+            pollChanged(new TaskKey(name, action));
         }
 
-        private void pollAll()
+        @Override
+        public void overflow()
         {
-            for (TaskFuture<?> task : tasks.values()) {
-                task.poll();
-            }
+            EnditEvents.overflow(name);
+            io.execute(WatchingEnditNearlineStorage.this::pollAll);
         }
     }
 
@@ -148,7 +252,8 @@ public class WatchingEnditNearlineStorage extends AbstractEnditNearlineStorage
      * Represents the future result of a PollingTask.
      *
      * Periodically polls the task to check whether it has completed. If this Future
-     * is cancelled, the task is aborted.
+     * is cancelled, the task is aborted. Waits for the metadata budget are deferred
+     * until the monitor of this Future has been released.
      *
      * @param <V> The result type returned by this Future's <tt>get</tt> method
      */
@@ -164,56 +269,96 @@ public class WatchingEnditNearlineStorage extends AbstractEnditNearlineStorage
 
         private void register()
         {
-            for (Path path : task.getFilesToWatch()) {
-                if (tasks.putIfAbsent(path, this) != null) {
-                    setException(new IllegalStateException("Duplicate nearline requests on " + path));
-                }
+            TaskKey key = TaskKey.of(task);
+            if (tasks.putIfAbsent(key, this) != null) {
+                setException(new IllegalStateException("Duplicate nearline requests on " + key));
             }
         }
 
         private void unregister()
         {
-            for (Path path : task.getFilesToWatch()) {
-                tasks.remove(path, this);
-            }
+            tasks.remove(TaskKey.of(task), this);
         }
 
-        public synchronized void poll()
+        /**
+         * Polls the task.
+         *
+         * @return true if this poll completed the task
+         */
+        public synchronized boolean poll()
         {
             try {
                 if (!isDone()) {
-                    V result = task.poll();
+                    V result = EnditEvents.poll(task);
                     if (result != null) {
                         unregister();
                         set(result);
+                        metrics.trace(task.getId(), RequestTrace.Event.COMPLETED);
+                        EnditEvents.completed(task, null);
+                        return true;
                     }
                 }
+                return false;
             } catch (Exception e) {
+                fail(e);
+                return true;
+            }
+        }
+
+        /**
+         * Aborts the task and fails this Future with the given cause.
+         */
+        public synchronized void fail(Exception cause)
+        {
+            if (!isDone()) {
                 try {
-                    task.abort();
+                    if (EnditEvents.abort(task)) {
+                        sweeper.cleanup(task);
+                    }
                 } catch (Exception suppressed) {
-                    e.addSuppressed(suppressed);
+                    cause.addSuppressed(suppressed);
                 }
-                unregister();
-                setException(e);
+                failed(cause);
             }
         }
 
+        private void failed(Exception cause)
+        {
+            unregister();
+            setException(cause);
+            metrics.trace(task.getId(), RequestTrace.Event.FAILED, cause.toString());
+            EnditEvents.completed(task, cause);
+        }
+
+        /**
+         * Aborts the task and cancels this Future, unless the task can no longer be
+         * aborted because Endit already served it. The remaining files of the task
+         * are removed in the background by the sweeper.
+         */
         @Override
-        public synchronized boolean cancel(boolean mayInterruptIfRunning)
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return MetadataBudget.deferring(() -> abort(mayInterruptIfRunning));
+        }
+
+        private synchronized boolean abort(boolean mayInterruptIfRunning)
         {
             if (isDone()) {
                 return false;
             }
             try {
-                if (!task.abort()) {
+                if (!EnditEvents.abort(task)) {
                     return false;
                 }
-                super.cancel(mayInterruptIfRunning);
             } catch (Exception e) {
-                setException(e);
+                failed(e);
+                return false;
             }
+            super.cancel(mayInterruptIfRunning);
             unregister();
+            sweeper.cleanup(task);
+            metrics.trace(task.getId(), RequestTrace.Event.CANCELLED);
+            EnditEvents.cancelled(task);
             return true;
         }
     }
@@ -0,0 +1,119 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.stream.Stream;
+
+/**
+ * Temporary Endit directory with a fake pool directory next to it.
+ *
+ * The directory is created below the directory given by the <tt>endit.perf.dir</tt>
+ * system property, which defaults to <tt>/dev/shm</tt> so that benchmarks measure
+ * the provider rather than the disk.
+ */
+class EnditDirectory
+{
+    private final Path root;
+
+    private EnditDirectory(Path root)
+    {
+        this.root = root;
+    }
+
+    static EnditDirectory create() throws IOException
+    {
+        Path base = Paths.get(System.getProperty("endit.perf.dir", "/dev/shm"));
+        if (!Files.isDirectory(base)) {
+            base = Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+        EnditDirectory dir = new EnditDirectory(Files.createTempDirectory(base, "endit-perf-"));
+        Files.createDirectory(dir.pool());
+        Files.createDirectory(dir.request());
+        Files.createDirectory(dir.out());
+        Files.createDirectory(dir.in());
+        Files.createDirectory(dir.trash());
+        return dir;
+    }
+
+    Path root()
+    {
+        return root;
+    }
+
+    Path pool()
+    {
+        return root.resolve("pool");
+    }
+
+    Path request()
+    {
+        return root.resolve("request");
+    }
+
+    Path out()
+    {
+        return root.resolve("out");
+    }
+
+    Path in()
+    {
+        return root.resolve("in");
+    }
+
+    Path trash()
+    {
+        return root.resolve("trash");
+    }
+
+    /**
+     * Returns the number of entries in a directory.
+     */
+    static long count(Path directory) throws IOException
+    {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.count();
+        }
+    }
+
+    void delete() throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
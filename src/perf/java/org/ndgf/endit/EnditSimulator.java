@@ -0,0 +1,189 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates the Endit daemons on the file protocol.
+ *
+ * The request directory is scanned periodically like Endit does. Every new request
+ * occupies one of a fixed number of tape drives for an exponentially distributed
+ * time, after which a recall creates the file in the in directory with the
+ * requested size, and a migration deletes the hard link in the out directory. A
+ * configurable fraction of the recalls fails with an error file instead.
+ *
+ * Staged files are sparse, so their size costs neither time nor memory.
+ */
+class EnditSimulator
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnditSimulator.class);
+
+    private final EnditDirectory dir;
+    private final long latency;
+    private final double errorRate;
+    private final long scanInterval;
+
+    private final ScheduledExecutorService scanner =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("endit-simulator").build());
+    private final ExecutorService drives;
+
+    private final Map<String, FileTime> seen = new HashMap<>();
+    private final Map<String, Long> done = new ConcurrentHashMap<>();
+    private final LongAdder recalls = new LongAdder();
+    private final LongAdder migrations = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * @param dir the Endit directory
+     * @param drives the number of requests served concurrently
+     * @param latency the mean time in milliseconds a drive is occupied by a request
+     * @param errorRate the fraction of recalls that fail
+     * @param scanInterval the time in milliseconds between scans of the request directory
+     */
+    EnditSimulator(EnditDirectory dir, int drives, long latency, double errorRate, long scanInterval)
+    {
+        this.dir = dir;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.scanInterval = scanInterval;
+        this.drives = Executors.newFixedThreadPool(drives, new ThreadFactoryBuilder().setNameFormat("endit-drive-%d").build());
+    }
+
+    void start()
+    {
+        scanner.scheduleWithFixedDelay(this::scan, 0, scanInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown()
+    {
+        scanner.shutdownNow();
+        drives.shutdownNow();
+    }
+
+    /**
+     * Returns the value of System.nanoTime() when the request for the given pnfsid
+     * was served, or null if it has not been served yet.
+     */
+    Long getServed(String id)
+    {
+        return done.get(id);
+    }
+
+    long getRecalls()
+    {
+        return recalls.sum();
+    }
+
+    long getMigrations()
+    {
+        return migrations.sum();
+    }
+
+    long getErrors()
+    {
+        return errors.sum();
+    }
+
+    private void scan()
+    {
+        Set<String> current = new HashSet<>();
+        try (DirectoryStream<Path> requests = Files.newDirectoryStream(dir.request())) {
+            for (Path request : requests) {
+                String id = request.getFileName().toString();
+                if (id.indexOf('.') != -1) {
+                    continue;
+                }
+                current.add(id);
+                FileTime modified;
+                JsonObject json;
+                try {
+                    /* Requests published again, e.g. after a failure, are served again. */
+                    modified = Files.getLastModifiedTime(request);
+                    if (modified.equals(seen.get(id))) {
+                        continue;
+                    }
+                    json = JsonParser.parseString(new String(Files.readAllBytes(request), StandardCharsets.UTF_8))
+                            .getAsJsonObject();
+                } catch (NoSuchFileException | JsonParseException | IllegalStateException e) {
+                    /* Withdrawn or not completely written yet. */
+                    continue;
+                }
+                seen.put(id, modified);
+                drives.execute(() -> serve(id, json));
+            }
+            seen.keySet().retainAll(current);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to scan request directory: {}", e.toString());
+        }
+    }
+
+    private void serve(String id, JsonObject request)
+    {
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Thread.sleep((long) (-latency * Math.log(1 - random.nextDouble())));
+            if (!Files.exists(dir.request().resolve(id))) {
+                return;
+            }
+            done.put(id, System.nanoTime());
+            boolean recall = request.get("action").getAsString().equals("recall");
+            if (recall && random.nextDouble() < errorRate) {
+                Files.write(dir.request().resolve(id + ".err"),
+                            ("42\nSimulated failure of " + id + "\n").getBytes(StandardCharsets.UTF_8));
+                errors.increment();
+            } else if (recall) {
+                try (RandomAccessFile file = new RandomAccessFile(dir.in().resolve(id).toFile(), "rw")) {
+                    file.setLength(request.get("file_size").getAsLong());
+                }
+                recalls.increment();
+            } else {
+                Files.deleteIfExists(dir.out().resolve(id));
+                migrations.increment();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            LOGGER.warn("Failed to serve {}: {}", id, e.toString());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import diskCacheV111.util.PnfsId;
+import diskCacheV111.vehicles.GenericStorageInfo;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.dcache.pool.nearline.spi.NearlineRequest;
+import org.dcache.vehicles.FileAttributes;
+
+/**
+ * Nearline request for benchmarks and load tests. The outcome reported by the
+ * nearline storage is available as a future.
+ *
+ * @param <T> The result type of the request
+ */
+abstract class FakeRequest<T> implements NearlineRequest<T>
+{
+    private final UUID id = UUID.randomUUID();
+    private final SettableFuture<T> result = SettableFuture.create();
+    protected final FileAttributes fileAttributes;
+
+    FakeRequest(FileAttributes fileAttributes)
+    {
+        this.fileAttributes = fileAttributes;
+    }
+
+    /**
+     * Returns the pnfsid of the n'th fake file.
+     */
+    static String pnfsId(long n)
+    {
+        return String.format("0000%020X", n);
+    }
+
+    static FileAttributes fileAttributes(String pnfsId, long size, String storageClass)
+    {
+        GenericStorageInfo storageInfo = new GenericStorageInfo("endit", storageClass);
+        storageInfo.setKey("path", "/pnfs/fake/" + pnfsId);
+        FileAttributes fileAttributes = new FileAttributes();
+        fileAttributes.setPnfsId(new PnfsId(pnfsId));
+        fileAttributes.setSize(size);
+        fileAttributes.setStorageClass(storageClass);
+        fileAttributes.setHsm("endit");
+        fileAttributes.setStorageInfo(storageInfo);
+        fileAttributes.setChecksums(Collections.emptySet());
+        return fileAttributes;
+    }
+
+    public FileAttributes getFileAttributes()
+    {
+        return fileAttributes;
+    }
+
+    /**
+     * Returns the outcome of the request as reported by the nearline storage.
+     */
+    ListenableFuture<T> result()
+    {
+        return result;
+    }
+
+    @Override
+    public UUID getId()
+    {
+        return id;
+    }
+
+    @Override
+    public long getDeadline()
+    {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public ListenableFuture<Void> activate()
+    {
+        return Futures.immediateFuture(null);
+    }
+
+    @Override
+    public void failed(Exception cause)
+    {
+        result.setException(cause);
+    }
+
+    @Override
+    public void failed(int rc, String msg)
+    {
+        result.setException(new EnditException(rc, msg));
+    }
+
+    @Override
+    public void completed(T value)
+    {
+        result.set(value);
+    }
+}
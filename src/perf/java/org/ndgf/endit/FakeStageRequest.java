@@ -0,0 +1,61 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Set;
+
+import org.dcache.pool.nearline.spi.StageRequest;
+import org.dcache.util.Checksum;
+import org.dcache.vehicles.FileAttributes;
+
+/**
+ * Stage request to a replica in a fake pool directory. Space is always available.
+ */
+class FakeStageRequest extends FakeRequest<Set<Checksum>> implements StageRequest
+{
+    private final File file;
+
+    FakeStageRequest(File file, FileAttributes fileAttributes)
+    {
+        super(fileAttributes);
+        this.file = file;
+    }
+
+    @Override
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public URI getReplicaUri()
+    {
+        return file.toURI();
+    }
+
+    @Override
+    public ListenableFuture<Void> allocate()
+    {
+        return Futures.immediateFuture(null);
+    }
+}
@@ -0,0 +1,202 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dcache.pool.nearline.spi.FlushRequest;
+import org.dcache.pool.nearline.spi.StageRequest;
+
+/**
+ * End-to-end load test of the polling, the watching and the auto provider
+ * against the Endit simulator.
+ *
+ * Arguments are key=value pairs:
+ *
+ *   providers    comma separated list of providers to test (polling,watching);
+ *                auto is also accepted
+ *   requests     number of requests submitted to each provider (100000)
+ *   stages       fraction of the requests that are stages; the others are flushes (0.5)
+ *   size         size of the files in bytes (1073741824)
+ *   drives       number of requests the simulator serves concurrently (1000)
+ *   latency      mean time in milliseconds the simulator takes to serve a request (1000)
+ *   errors       fraction of the stages that fail (0.01)
+ *   scan         interval in milliseconds at which the simulator scans for requests (1000)
+ *
+ * All other pairs are passed to the provider as its configuration. For every
+ * provider the throughput, the lag between Endit serving a request and the request
+ * being reported as done to the pool, and the number of file system calls made
+ * by the provider are reported.
+ */
+public class LoadHarness
+{
+    private final Map<String, String> configuration;
+    private final int requests;
+    private final double stages;
+    private final long size;
+    private final int drives;
+    private final long latency;
+    private final double errors;
+    private final long scan;
+
+    private LoadHarness(Map<String, String> options)
+    {
+        requests = Integer.parseInt(remove(options, "requests", "100000"));
+        stages = Double.parseDouble(remove(options, "stages", "0.5"));
+        size = Long.parseLong(remove(options, "size", "1073741824"));
+        drives = Integer.parseInt(remove(options, "drives", "1000"));
+        latency = Long.parseLong(remove(options, "latency", "1000"));
+        errors = Double.parseDouble(remove(options, "errors", "0.01"));
+        scan = Long.parseLong(remove(options, "scan", "1000"));
+        configuration = options;
+    }
+
+    private static String remove(Map<String, String> options, String key, String defaultValue)
+    {
+        String value = options.remove(key);
+        return (value == null) ? defaultValue : value;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i == -1) {
+                System.err.println("Invalid argument: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        String providers = remove(options, "providers", "polling,watching");
+        LoadHarness harness = new LoadHarness(options);
+        EnditFiles.startCounting();
+        for (String provider : providers.split(",")) {
+            harness.run(provider);
+        }
+        System.exit(0);
+    }
+
+    private void run(String provider) throws Exception
+    {
+        EnditDirectory dir = EnditDirectory.create();
+        Path data = dir.root().resolve("data");
+        try (RandomAccessFile file = new RandomAccessFile(data.toFile(), "rw")) {
+            file.setLength(size);
+        }
+
+        AbstractEnditNearlineStorage storage;
+        switch (provider) {
+        case "polling":
+            storage = new PollingEnditNearlineStorage("endit", provider);
+            break;
+        case "watching":
+            storage = new WatchingEnditNearlineStorage("endit", provider);
+            break;
+        case "auto":
+            storage = new AutoEnditNearlineStorage("endit", provider);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown provider: " + provider);
+        }
+        Map<String, String> properties = new HashMap<>(configuration);
+        properties.put("directory", dir.root().toString());
+        properties.putIfAbsent("metrics-interval", "0");
+        storage.configure(properties);
+        storage.start();
+
+        EnditSimulator simulator = new EnditSimulator(dir, drives, latency, errors, scan);
+        simulator.start();
+
+        LatencyHistogram lag = new LatencyHistogram();
+        LongAdder failed = new LongAdder();
+        CountDownLatch remaining = new CountDownLatch(requests);
+        long calls = EnditFiles.totalCalls();
+        long start = System.nanoTime();
+
+        List<FlushRequest> flushes = new ArrayList<>();
+        List<StageRequest> stageRequests = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            String id = FakeRequest.pnfsId(i);
+            FakeRequest<?> request;
+            if (i < requests * stages) {
+                FakeStageRequest stage = new FakeStageRequest(dir.pool().resolve(id).toFile(),
+                                                              FakeRequest.fileAttributes(id, size, "test:stage"));
+                stageRequests.add(stage);
+                request = stage;
+            } else {
+                Path replica = Files.createLink(dir.pool().resolve(id), data);
+                FakeFlushRequest flush = new FakeFlushRequest(replica.toFile(),
+                                                              FakeRequest.fileAttributes(id, size, "test:flush"));
+                flushes.add(flush);
+                request = flush;
+            }
+            request.result().addListener(() -> {
+                Long served = simulator.getServed(id);
+                if (served != null) {
+                    lag.recordSince(served);
+                }
+                try {
+                    request.result().get();
+                } catch (ExecutionException | InterruptedException e) {
+                    failed.increment();
+                }
+                remaining.countDown();
+            }, MoreExecutors.directExecutor());
+
+            if (stageRequests.size() + flushes.size() == 1000 || i == requests - 1) {
+                storage.stage(stageRequests);
+                storage.flush(flushes);
+                stageRequests.clear();
+                flushes.clear();
+            }
+        }
+        long submitted = System.nanoTime();
+
+        while (!remaining.await(10, TimeUnit.SECONDS)) {
+            System.out.printf("%s: %d of %d requests outstanding%n", provider, remaining.getCount(), requests);
+        }
+        long end = System.nanoTime();
+        calls = EnditFiles.totalCalls() - calls;
+
+        double seconds = (end - start) / 1e9;
+        System.out.printf("%s: %d requests (%d recalls, %d migrations, %d failures) in %.1f s%n",
+                          provider, requests, simulator.getRecalls(), simulator.getMigrations(), failed.sum(), seconds);
+        System.out.printf("%s: submission %.1f s, throughput %.0f requests/s%n",
+                          provider, (submitted - start) / 1e9, requests / seconds);
+        System.out.printf("%s: completion lag %s%n", provider, lag);
+        System.out.printf("%s: %d file system calls, %.1f per request%n",
+                          provider, calls, (double) calls / requests);
+
+        storage.shutdown();
+        simulator.shutdown();
+        dir.delete();
+    }
+}
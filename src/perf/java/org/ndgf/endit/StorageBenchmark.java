@@ -0,0 +1,151 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.pool.nearline.spi.StageRequest;
+
+/**
+ * Measures request submission through ListeningNearlineStorage and the round trip
+ * through the TaskFuture of the polling and the watching provider while a number
+ * of stage requests are queued.
+ *
+ * The round trip plays the part of Endit: once the flush has been published, the
+ * benchmark removes the hard link from the out directory and notifies the provider,
+ * just like Endit does with a notification socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StorageBenchmark
+{
+    @Param({"polling", "watching"})
+    public String provider;
+
+    @Param({"1000", "100000"})
+    public int queued;
+
+    private EnditDirectory dir;
+    private AbstractEnditNearlineStorage storage;
+    private Path data;
+    private long next;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        dir = EnditDirectory.create();
+        data = Files.createFile(dir.root().resolve("data"));
+
+        if (provider.equals("polling")) {
+            storage = new PollingEnditNearlineStorage("endit", "benchmark");
+        } else {
+            storage = new WatchingEnditNearlineStorage("endit", "benchmark");
+        }
+        Map<String, String> properties = new HashMap<>();
+        properties.put("directory", dir.root().toString());
+        properties.put("metrics-interval", "0");
+        storage.configure(properties);
+        storage.start();
+
+        List<StageRequest> requests = new ArrayList<>(queued);
+        for (int i = 0; i < queued; i++) {
+            requests.add(newStageRequest());
+        }
+        storage.stage(requests);
+        while (EnditDirectory.count(dir.request()) < queued) {
+            Thread.sleep(100);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        storage.shutdown();
+        dir.delete();
+    }
+
+    private FakeStageRequest newStageRequest()
+    {
+        String id = FakeRequest.pnfsId(next++);
+        return new FakeStageRequest(dir.pool().resolve(id).toFile(), FakeRequest.fileAttributes(id, 1024, "test:stage"));
+    }
+
+    @Benchmark
+    public Object stageSubmitAndCancel() throws Exception
+    {
+        FakeStageRequest request = newStageRequest();
+        storage.stage(Collections.singleton(request));
+        storage.cancel(request.getId());
+        try {
+            return request.result().get();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof CancellationException)) {
+                throw e;
+            }
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object flushRoundTrip() throws Exception
+    {
+        String id = FakeRequest.pnfsId(next++);
+        Path replica = Files.createLink(dir.pool().resolve(id), data);
+        FakeFlushRequest request = new FakeFlushRequest(replica.toFile(), FakeRequest.fileAttributes(id, 0, "test:flush"));
+        storage.flush(Collections.singleton(request));
+
+        Path link = dir.out().resolve(id);
+        while (!Files.exists(link) && !request.result().isDone()) {
+            Thread.onSpinWait();
+        }
+        Files.deleteIfExists(link);
+        storage.poll(id);
+        try {
+            return request.result().get(10, TimeUnit.SECONDS);
+        } finally {
+            Files.delete(replica);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of starting and polling single flush and stage tasks while a
+ * number of other requests are queued in the same Endit directory.
+ *
+ * Every queued flush has its request file and its hard link in the out directory,
+ * and every queued stage has its request file, just like with a real Endit that
+ * has not yet picked up the requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TaskBenchmark
+{
+    @Param({"1000", "100000"})
+    public int queued;
+
+    private EnditDirectory dir;
+    private RequestPublisher publisher;
+    private FlushTask[] flushes;
+    private FlushTask[] flushed;
+    private StageTask[] stages;
+    private JsonObject request;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        dir = EnditDirectory.create();
+        publisher = new FileRequestPublisher(dir.request());
+        EnditMetrics metrics = new EnditMetrics("benchmark");
+
+        Path data = Files.createFile(dir.root().resolve("data"));
+        flushes = new FlushTask[queued];
+        flushed = new FlushTask[queued];
+        stages = new StageTask[queued];
+        for (int i = 0; i < queued; i++) {
+            String id = FakeRequest.pnfsId(i);
+            Path replica = Files.createLink(dir.pool().resolve(id), data);
+            flushes[i] = new FlushTask(new FakeFlushRequest(replica.toFile(), FakeRequest.fileAttributes(id, 0, "test:flush")),
+                                       publisher, dir.out(), "endit", "benchmark", metrics);
+            flushes[i].start();
+
+            id = FakeRequest.pnfsId(queued + i);
+            flushed[i] = new FlushTask(new FakeFlushRequest(dir.pool().resolve(id).toFile(), FakeRequest.fileAttributes(id, 0, "test:flush")),
+                                       publisher, dir.out(), "endit", "benchmark", metrics);
+
+            id = FakeRequest.pnfsId(2 * queued + i);
+            stages[i] = new StageTask(new FakeStageRequest(dir.pool().resolve(id).toFile(), FakeRequest.fileAttributes(id, 1024, "test:stage")),
+                                      publisher, dir.request(), dir.in(), metrics,
+                                      new ArrivalDetector(), RecallClassifier.BULK);
+            stages[i].start();
+        }
+
+        request = new JsonObject();
+        request.addProperty("file_size", 1024L);
+        request.addProperty("parent_pid", 4711);
+        request.addProperty("time", System.currentTimeMillis() / 1000);
+        request.addProperty("storage_class", "test:stage");
+        request.addProperty("action", "recall");
+        request.addProperty("path", "/pnfs/fake/" + FakeRequest.pnfsId(0));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        dir.delete();
+    }
+
+    private int next()
+    {
+        int i = next;
+        next = (i + 1 == queued) ? 0 : i + 1;
+        return i;
+    }
+
+    /**
+     * Starting a flush is not idempotent, so every start is paired with an abort.
+     */
+    @Benchmark
+    public boolean flushStartAndAbort() throws Exception
+    {
+        FlushTask task = flushes[next()];
+        task.abort();
+        task.start();
+        return true;
+    }
+
+    @Benchmark
+    public Object flushPollPending() throws Exception
+    {
+        return flushes[next()].poll();
+    }
+
+    @Benchmark
+    public Object flushPollCompleted() throws Exception
+    {
+        return flushed[next()].poll();
+    }
+
+    @Benchmark
+    public Object stageStart() throws Exception
+    {
+        return stages[next()].start();
+    }
+
+    @Benchmark
+    public Object stagePollPending() throws Exception
+    {
+        return stages[next()].poll();
+    }
+
+    @Benchmark
+    public String encodeRequest()
+    {
+        return request.toString();
+    }
+
+    @Benchmark
+    public boolean publishRequest() throws Exception
+    {
+        publisher.publish(stages[next()].getId(), request);
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the retained heap per queued recall.
+ *
+ * Creates a number of stage requests, then a stage task for each of them, and
+ * finally indexes the tasks by pnfsid, once in a {@link TaskIndex} and once in a
+ * {@link ConcurrentHashMap} for comparison. After every step the heap is collected
+ * and the growth of the retained heap is reported per request. The dCache owned
+ * requests are measured separately, as are the futures of the providers, which
+ * are not created here.
+ *
+ * The only argument is the number of requests (500000). The figures rely on
+ * System.gc() triggering a full collection, which is the case for the serial, the
+ * parallel and the G1 collector:
+ *
+ *   mvn -Pperf test-compile exec:exec -Dperf.main=org.ndgf.endit.TaskFootprint \
+ *       -Dperf.args=500000
+ */
+public class TaskFootprint
+{
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception
+    {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+
+        EnditDirectory dir = EnditDirectory.create();
+        try {
+            RequestPublisher publisher = new FileRequestPublisher(dir.request());
+            EnditMetrics metrics = new EnditMetrics("footprint");
+            ArrivalDetector arrivalDetector = new ArrivalDetector();
+            Path pool = dir.pool();
+            Path requestDir = dir.request();
+            Path inDir = dir.in();
+
+            long base = retained();
+            FakeStageRequest[] stageRequests = new FakeStageRequest[requests];
+            for (int i = 0; i < requests; i++) {
+                String id = FakeRequest.pnfsId(i);
+                stageRequests[i] = new FakeStageRequest(pool.resolve(id).toFile(),
+                                                        FakeRequest.fileAttributes(id, 1024, "test:stage"));
+            }
+            long afterRequests = retained();
+
+            StageTask[] tasks = new StageTask[requests];
+            for (int i = 0; i < requests; i++) {
+                tasks[i] = new StageTask(stageRequests[i], publisher, requestDir, inDir, metrics,
+                                         arrivalDetector, RecallClassifier.BULK);
+            }
+            long afterTasks = retained();
+
+            TaskIndex<String, StageTask> index = new TaskIndex<>();
+            for (StageTask task : tasks) {
+                index.put(task.getId(), task);
+            }
+            long afterIndex = retained();
+            index = null;
+
+            long beforeMap = retained();
+            ConcurrentHashMap<String, StageTask> map = new ConcurrentHashMap<>();
+            for (StageTask task : tasks) {
+                map.put(task.getId(), task);
+            }
+            long afterMap = retained();
+
+            System.out.printf("requests                 %d%n", requests);
+            System.out.printf("request (dCache)         %6.1f bytes%n", perRequest(afterRequests - base, requests));
+            System.out.printf("stage task               %6.1f bytes%n", perRequest(afterTasks - afterRequests, requests));
+            System.out.printf("TaskIndex entry          %6.1f bytes%n", perRequest(afterIndex - afterTasks, requests));
+            System.out.printf("ConcurrentHashMap entry  %6.1f bytes%n", perRequest(afterMap - beforeMap, requests));
+            System.out.printf("queued recall            %6.1f bytes%n", perRequest(afterIndex - afterRequests, requests));
+
+            /* Keep everything reachable until the last measurement. */
+            if (stageRequests.length + tasks.length + map.size() < 0) {
+                System.out.println();
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
+    private static double perRequest(long bytes, int requests)
+    {
+        return (double) bytes / requests;
+    }
+
+    private static long retained() throws InterruptedException
+    {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, MEMORY.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
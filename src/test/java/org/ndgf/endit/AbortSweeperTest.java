@@ -0,0 +1,160 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AbortSweeperTest
+{
+    /**
+     * Task recording its cleanup.
+     */
+    private static class Task implements PollingTask<Void>
+    {
+        final String id;
+        final Runnable cleanup;
+
+        Task(String id, Runnable cleanup)
+        {
+            this.id = id;
+            this.cleanup = cleanup;
+        }
+
+        @Override
+        public String getId()
+        {
+            return id;
+        }
+
+        @Override
+        public Action getAction()
+        {
+            return Action.RECALL;
+        }
+
+        @Override
+        public Void start()
+        {
+            return null;
+        }
+
+        @Override
+        public Void poll()
+        {
+            return null;
+        }
+
+        @Override
+        public boolean abort()
+        {
+            return true;
+        }
+
+        @Override
+        public void cleanup()
+        {
+            cleanup.run();
+        }
+    }
+
+    @Test
+    public void shouldSweepQueuedTasks() throws Exception
+    {
+        AbortSweeper sweeper = new AbortSweeper(2);
+        CountDownLatch swept = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            sweeper.cleanup(new Task(TestRequests.pnfsId(i), swept::countDown));
+        }
+        assertTrue(swept.await(10, TimeUnit.SECONDS));
+        sweeper.shutdown(1000);
+    }
+
+    @Test
+    public void shouldLimitParallelSweeps() throws Exception
+    {
+        AbortSweeper sweeper = new AbortSweeper(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        CountDownLatch swept = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            sweeper.cleanup(new Task(TestRequests.pnfsId(i), () -> {
+                max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                swept.countDown();
+            }));
+        }
+        assertTrue(swept.await(10, TimeUnit.SECONDS));
+        assertTrue(max.get() <= 3);
+        sweeper.shutdown(1000);
+    }
+
+    @Test
+    public void shouldContinueAfterFailedCleanup() throws Exception
+    {
+        AbortSweeper sweeper = new AbortSweeper(1);
+        CountDownLatch swept = new CountDownLatch(1);
+        sweeper.cleanup(new Task(TestRequests.pnfsId(1), () -> {
+            throw new IllegalStateException("failed");
+        }));
+        sweeper.cleanup(new Task(TestRequests.pnfsId(2), swept::countDown));
+        assertTrue(swept.await(10, TimeUnit.SECONDS));
+        sweeper.shutdown(1000);
+    }
+
+    @Test
+    public void shouldWaitForQueuedTasksOnShutdown()
+    {
+        AbortSweeper sweeper = new AbortSweeper(1);
+        Set<String> swept = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 20; i++) {
+            String id = TestRequests.pnfsId(i);
+            sweeper.cleanup(new Task(id, () -> swept.add(id)));
+        }
+        sweeper.shutdown(10000);
+        assertEquals(20, swept.size());
+    }
+
+    @Test
+    public void shouldSweepInlineOnceShutDown()
+    {
+        AbortSweeper sweeper = new AbortSweeper(1);
+        sweeper.shutdown(1000);
+        Thread caller = Thread.currentThread();
+        AtomicInteger inline = new AtomicInteger();
+        sweeper.cleanup(new Task(TestRequests.pnfsId(1), () -> {
+            if (Thread.currentThread() == caller) {
+                inline.incrementAndGet();
+            }
+        }));
+        assertEquals(1, inline.get());
+    }
+}
@@ -0,0 +1,136 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.dcache.util.Checksum;
+import org.dcache.vehicles.FileAttributes;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Behaviour shared by the providers, run against each of them by a subclass.
+ */
+public abstract class AbstractEnditNearlineStorageTest
+{
+    protected static final String ID = TestRequests.pnfsId(0xA1);
+
+    protected Path dir;
+    protected AbstractEnditNearlineStorage storage;
+
+    protected abstract AbstractEnditNearlineStorage createStorage();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit");
+        for (String name : new String[] { "in", "out", "request", "trash" }) {
+            Files.createDirectory(dir.resolve(name));
+        }
+        storage = createStorage();
+        storage.configure(ImmutableMap.of("directory", dir.toString(), "metrics-interval", "0"));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        storage.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void await(Path file) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && !Files.exists(file); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(Files.exists(file));
+    }
+
+    private ListenableFuture<Set<URI>> flush(FileAttributes fileAttributes) throws IOException
+    {
+        Path file = dir.resolve(ID);
+        if (!Files.exists(file)) {
+            Files.write(file, new byte[10]);
+        }
+        return storage.flush(TestRequests.flush(file, fileAttributes));
+    }
+
+    @Test
+    public void shouldTrashFileRemovedWhileFlushIsPublished() throws Exception
+    {
+        flush(TestRequests.fileAttributes(ID, 10, "a:b"));
+        Path link = dir.resolve("out").resolve(ID);
+        await(link);
+
+        storage.remove(TestRequests.remove(URI.create("osm://test/?store=a&group=b&bfid=" + ID)))
+                .get(10, TimeUnit.SECONDS);
+
+        assertFalse(Files.exists(link));
+        assertTrue(Files.exists(dir.resolve("trash").resolve(ID)));
+    }
+
+    @Test
+    public void shouldRejectDuplicateFlush() throws Exception
+    {
+        FileAttributes fileAttributes = TestRequests.fileAttributes(ID, 10, "a:b");
+        ListenableFuture<Set<URI>> first = flush(fileAttributes);
+        await(dir.resolve("out").resolve(ID));
+        ListenableFuture<Set<URI>> second = flush(fileAttributes);
+        try {
+            second.get(10, TimeUnit.SECONDS);
+            fail("Duplicate flush was accepted.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(first.isDone());
+    }
+
+    @Test
+    public void shouldFlushAndStageSameFile() throws Exception
+    {
+        FileAttributes fileAttributes = TestRequests.fileAttributes(ID, 10, "a:b");
+        ListenableFuture<Set<URI>> flush = flush(fileAttributes);
+        await(dir.resolve("out").resolve(ID));
+        ListenableFuture<Set<Checksum>> stage =
+                storage.stage(TestRequests.stage(dir.resolve(ID + ".staged"), fileAttributes));
+        await(dir.resolve("request").resolve(ID));
+
+        Thread.sleep(200);
+        assertFalse(flush.isDone());
+        assertFalse(stage.isDone());
+    }
+}
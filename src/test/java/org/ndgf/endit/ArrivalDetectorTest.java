@@ -0,0 +1,170 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArrivalDetectorTest
+{
+    private static final long QUIET = 200;
+
+    private Path inDir;
+    private Path file;
+    private final ArrivalDetector detector = new ArrivalDetector();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        inDir = Files.createTempDirectory("endit-in");
+        file = inDir.resolve("000000000000000000000001");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(inDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws IOException
+    {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    private static void age(Path file, long millis) throws IOException
+    {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - millis));
+    }
+
+    private long timeComplete(boolean expected) throws Exception
+    {
+        long start = System.nanoTime();
+        boolean complete = detector.isComplete(file, attributes(file));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (expected) {
+            assertTrue(complete);
+        } else {
+            assertFalse(complete);
+        }
+        return elapsed;
+    }
+
+    @Test
+    public void graceShouldWaitForQuietPeriod() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.GRACE, QUIET);
+        Files.write(file, new byte[10]);
+        age(file, 10 * QUIET);
+
+        assertTrue(timeComplete(true) >= QUIET);
+    }
+
+    @Test
+    public void mtimeShouldAcceptStaleFileRightAway() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.MTIME, QUIET);
+        Files.write(file, new byte[10]);
+        age(file, 10 * QUIET);
+
+        assertTrue(timeComplete(true) < QUIET);
+    }
+
+    @Test
+    public void mtimeShouldAcceptQuietFileAfterRestOfPeriod() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.MTIME, QUIET);
+        Files.write(file, new byte[10]);
+        age(file, QUIET / 2);
+
+        long elapsed = timeComplete(true);
+        assertTrue(elapsed >= QUIET / 4);
+        assertTrue(elapsed < QUIET);
+    }
+
+    @Test
+    public void mtimeShouldRejectGrowingFile() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.MTIME, QUIET);
+        Files.write(file, new byte[10]);
+        BasicFileAttributes attributes = attributes(file);
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(QUIET / 4);
+                Files.write(file, new byte[10], StandardOpenOption.APPEND);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        try {
+            assertFalse(detector.isComplete(file, attributes));
+        } finally {
+            writer.join();
+        }
+    }
+
+    @Test
+    public void mtimeShouldRejectFileRemovedWhileWaiting() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.MTIME, QUIET);
+        Files.write(file, new byte[10]);
+        BasicFileAttributes attributes = attributes(file);
+        Files.delete(file);
+
+        assertFalse(detector.isComplete(file, attributes));
+    }
+
+    @Test
+    public void mtimeShouldWaitForFileRenamedFromFreshTemporaryFile() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.MTIME, QUIET);
+        Path tmpFile = inDir.resolve("." + file.getFileName());
+        Files.write(tmpFile, new byte[10]);
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+
+        assertTrue(timeComplete(true) >= QUIET / 2);
+    }
+
+    @Test
+    public void renameShouldAcceptFinalNameRightAway() throws Exception
+    {
+        detector.configure(ArrivalDetector.Strategy.RENAME, 10 * QUIET);
+        Path tmpFile = inDir.resolve("." + file.getFileName());
+        Files.write(tmpFile, new byte[10]);
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+
+        assertTrue(timeComplete(true) < QUIET);
+    }
+}
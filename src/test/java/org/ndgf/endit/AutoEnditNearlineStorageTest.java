@@ -0,0 +1,108 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AutoEnditNearlineStorageTest
+{
+    private Path dir;
+    private AutoEnditNearlineStorage storage;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit");
+        for (String name : new String[] { "in", "out", "request", "trash" }) {
+            Files.createDirectory(dir.resolve(name));
+        }
+        storage = new AutoEnditNearlineStorage("osm", "test");
+        storage.configure(ImmutableMap.of("directory", dir.toString(), "metrics-interval", "0"));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        storage.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void awaitProbe() throws InterruptedException
+    {
+        for (int i = 0; i < 100 && storage.isScanning(); i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void shouldUseFileEventsOnceProbed() throws Exception
+    {
+        awaitProbe();
+        assertFalse(storage.isScanning());
+        try (Stream<Path> files = Files.list(dir.resolve("in"))) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith(".endit-probe-")));
+        }
+    }
+
+    @Test
+    public void shouldScanWhenCompletionsAreMissedByFileEvents() throws Exception
+    {
+        awaitProbe();
+        storage.polled(true);
+        storage.scanned(1);
+        assertTrue(storage.isScanning());
+    }
+
+    @Test
+    public void shouldReturnToFileEventsOnceCompletionsAreNoticed() throws Exception
+    {
+        awaitProbe();
+        storage.scanned(1);
+        assertTrue(storage.isScanning());
+        for (int i = 0; i < 20; i++) {
+            storage.polled(true);
+        }
+        storage.scanned(0);
+        assertFalse(storage.isScanning());
+    }
+
+    @Test
+    public void shouldIgnoreIncompletePolls() throws Exception
+    {
+        awaitProbe();
+        for (int i = 0; i < 20; i++) {
+            storage.polled(false);
+        }
+        storage.scanned(1);
+        assertTrue(storage.isScanning());
+    }
+}
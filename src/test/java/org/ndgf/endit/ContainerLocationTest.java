@@ -0,0 +1,104 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import diskCacheV111.vehicles.GenericStorageInfo;
+import org.dcache.vehicles.FileAttributes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContainerLocationTest
+{
+    private static final String ID = "0000A1B2C3D4E5F60718293A4B5C6D7E8F90";
+    private static final String CONTAINER = "0000F1E2D3C4B5A60718293A4B5C6D7E8F90";
+
+    @Test
+    public void shouldRoundTripThroughUri() throws Exception
+    {
+        ContainerLocation location = new ContainerLocation(CONTAINER, 4096, 1234, 1L << 40);
+        URI uri = location.toUri("osm", "endit", ID);
+
+        ContainerLocation parsed = ContainerLocation.of(uri, "osm", "endit");
+
+        assertEquals(CONTAINER, parsed.container);
+        assertEquals(4096, parsed.offset);
+        assertEquals(1234, parsed.length);
+        assertEquals(1L << 40, parsed.size);
+        assertEquals(ID, RemoveTask.getPnfsId(uri));
+    }
+
+    @Test
+    public void shouldIgnoreUrisOfOtherInstances() throws Exception
+    {
+        URI uri = new ContainerLocation(CONTAINER, 0, 1, 1).toUri("osm", "endit", ID);
+        assertNull(ContainerLocation.of(uri, "osm", "other"));
+        assertNull(ContainerLocation.of(uri, "enstore", "endit"));
+    }
+
+    @Test
+    public void shouldIgnoreFilesFlushedOnTheirOwn()
+    {
+        assertNull(ContainerLocation.of(URI.create("osm://endit?bfid=" + ID), "osm", "endit"));
+        assertNull(ContainerLocation.of(URI.create("osm://endit"), "osm", "endit"));
+    }
+
+    @Test
+    public void shouldTolerateForeignParameters()
+    {
+        URI uri = URI.create("osm://endit?bfid=" + ID + "&flag&&x=1=2&container=" + CONTAINER
+                             + "&offset=10&length=20&size=30");
+        ContainerLocation location = ContainerLocation.of(uri, "osm", "endit");
+        assertEquals(CONTAINER, location.container);
+        assertEquals(10, location.offset);
+    }
+
+    @Test
+    public void shouldNotParseUrisOfOtherInstances()
+    {
+        assertNull(ContainerLocation.of(URI.create("enstore://endit?container=x&offset=bad"), "osm", "endit"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMalformedLocation()
+    {
+        ContainerLocation.of(URI.create("osm://endit?bfid=" + ID + "&container=" + CONTAINER + "&offset=ten"),
+                             "osm", "endit");
+    }
+
+    @Test
+    public void shouldFindLocationAmongLocationsOfFile() throws Exception
+    {
+        GenericStorageInfo storageInfo = new GenericStorageInfo("osm", "a:b");
+        storageInfo.addLocation(URI.create("enstore://tape?volume=V1"));
+        storageInfo.addLocation(new ContainerLocation(CONTAINER, 0, 1, 1).toUri("osm", "other", ID));
+        storageInfo.addLocation(new ContainerLocation(CONTAINER, 5, 6, 7).toUri("osm", "endit", ID));
+        FileAttributes fileAttributes = new FileAttributes();
+        fileAttributes.setStorageInfo(storageInfo);
+
+        ContainerLocation location = ContainerLocation.of(fileAttributes, "osm", "endit");
+
+        assertEquals(5, location.offset);
+        assertEquals(6, location.length);
+        assertEquals(7, location.size);
+    }
+}
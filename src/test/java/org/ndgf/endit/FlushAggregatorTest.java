@@ -0,0 +1,212 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.dcache.pool.nearline.spi.FlushRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushAggregatorTest
+{
+    private Path dir;
+    private Path containerDir;
+    private ScheduledExecutorService scheduler;
+    private byte[] container;
+    private String containerId;
+    private List<String> flushed;
+    private List<String> trashed;
+    private ListenableFuture<?> flushResult;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit-aggregate");
+        containerDir = Files.createDirectory(dir.resolve("containers"));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        flushed = new CopyOnWriteArrayList<>();
+        trashed = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        scheduler.shutdownNow();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private FlushAggregator aggregator(long containerSize)
+    {
+        FlushAggregator aggregator = new FlushAggregator("osm", "endit", (id, size, storageClass) -> {
+            try {
+                flushed.add(id);
+                containerId = id;
+                Path file = containerDir.resolve(id);
+                if (Files.exists(file)) {
+                    container = Files.readAllBytes(file);
+                    assertEquals(container.length, size);
+                }
+                return (flushResult != null) ? flushResult : Futures.immediateFuture(id);
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }, trashed::add, MoreExecutors.directExecutor(), scheduler);
+        aggregator.configure(containerDir, 1000, containerSize, TimeUnit.HOURS.toMillis(1));
+        return aggregator;
+    }
+
+    @Test
+    public void shouldPackMembersWithIndexTrailer() throws Exception
+    {
+        FlushAggregator aggregator = aggregator(8);
+        byte[] first = "abc".getBytes(StandardCharsets.US_ASCII);
+        byte[] second = "defgh".getBytes(StandardCharsets.US_ASCII);
+        Future<Set<URI>> firstFlush = aggregator.add(request(1, first));
+        Future<Set<URI>> secondFlush = aggregator.add(request(2, second));
+
+        ContainerLocation firstLocation =
+                ContainerLocation.of(firstFlush.get(10, TimeUnit.SECONDS).iterator().next(), "osm", "endit");
+        ContainerLocation secondLocation =
+                ContainerLocation.of(secondFlush.get(10, TimeUnit.SECONDS).iterator().next(), "osm", "endit");
+
+        assertEquals(containerId, firstLocation.container);
+        assertEquals(container.length, firstLocation.size);
+        assertArrayEquals(first, slice(firstLocation.offset, firstLocation.length));
+        assertArrayEquals(second, slice(secondLocation.offset, secondLocation.length));
+
+        String footer = new String(slice(container.length - FlushAggregator.FOOTER_LENGTH, FlushAggregator.FOOTER_LENGTH),
+                                   StandardCharsets.US_ASCII);
+        assertEquals(FlushAggregator.FOOTER_LENGTH, footer.length());
+        String[] words = footer.trim().split(" +");
+        assertEquals("endit-index", words[0]);
+        int length = Integer.parseInt(words[1]);
+        String index = new String(slice(container.length - FlushAggregator.FOOTER_LENGTH - length, length),
+                                  StandardCharsets.US_ASCII);
+        assertEquals(TestRequests.pnfsId(1) + " 0 3\n" + TestRequests.pnfsId(2) + " 3 5\n", index);
+    }
+
+    @Test
+    public void shouldTrashContainerOnceAllMembersAreRemoved() throws Exception
+    {
+        FlushAggregator aggregator = aggregator(8);
+        Future<Set<URI>> firstFlush = aggregator.add(request(1, "abc".getBytes(StandardCharsets.US_ASCII)));
+        Future<Set<URI>> secondFlush = aggregator.add(request(2, "defgh".getBytes(StandardCharsets.US_ASCII)));
+        ContainerLocation location =
+                ContainerLocation.of(firstFlush.get(10, TimeUnit.SECONDS).iterator().next(), "osm", "endit");
+        secondFlush.get(10, TimeUnit.SECONDS);
+
+        assertFalse(aggregator.remove(location, TestRequests.pnfsId(1)));
+        assertFalse(aggregator.remove(location, TestRequests.pnfsId(1)));
+        assertTrue(aggregator.remove(location, TestRequests.pnfsId(2)));
+        assertFalse(Files.exists(containerDir.resolve(containerId + ContainerMembers.MEMBERS)));
+    }
+
+    @Test
+    public void shouldResumeContainerLeftInOutDirectory() throws Exception
+    {
+        Path outDir = Files.createDirectory(dir.resolve("out"));
+        flushResult = SettableFuture.create();
+        FlushAggregator before = aggregator(8);
+        before.add(request(1, "abc".getBytes(StandardCharsets.US_ASCII)));
+        before.add(request(2, "defgh".getBytes(StandardCharsets.US_ASCII)));
+        Files.move(containerDir.resolve(containerId), outDir.resolve(containerId));
+        Path orphan = Files.write(containerDir.resolve(TestRequests.pnfsId(3)), new byte[1]);
+        String id = containerId;
+
+        flushed.clear();
+        flushResult = null;
+        FlushAggregator after = aggregator(1000);
+        after.reconcile(outDir);
+
+        assertEquals(Collections.singletonList(id), flushed);
+        assertFalse(Files.exists(orphan));
+        ContainerLocation location = ContainerLocation.of(
+                after.add(request(2, "defgh".getBytes(StandardCharsets.US_ASCII)))
+                        .get(10, TimeUnit.SECONDS).iterator().next(), "osm", "endit");
+        assertEquals(id, location.container);
+        assertEquals(3, location.offset);
+        assertEquals(5, location.length);
+        assertTrue(Files.exists(containerDir.resolve(id + ContainerMembers.MEMBERS)));
+    }
+
+    @Test
+    public void shouldCompleteMembersOfContainerMigratedWhileDown() throws Exception
+    {
+        Path outDir = Files.createDirectory(dir.resolve("out"));
+        flushResult = SettableFuture.create();
+        FlushAggregator before = aggregator(8);
+        before.add(request(1, "abc".getBytes(StandardCharsets.US_ASCII)));
+        before.add(request(2, "defgh".getBytes(StandardCharsets.US_ASCII)));
+        Files.delete(containerDir.resolve(containerId));
+        String id = containerId;
+
+        flushed.clear();
+        flushResult = null;
+        FlushAggregator after = aggregator(1000);
+        after.reconcile(outDir);
+
+        assertEquals(Collections.emptyList(), flushed);
+        ContainerLocation location = ContainerLocation.of(
+                after.add(request(1, "abc".getBytes(StandardCharsets.US_ASCII)))
+                        .get(10, TimeUnit.SECONDS).iterator().next(), "osm", "endit");
+        assertEquals(id, location.container);
+        assertFalse(after.remove(location, TestRequests.pnfsId(1)));
+        assertTrue(after.remove(location, TestRequests.pnfsId(2)));
+    }
+
+    private byte[] slice(long offset, long length)
+    {
+        return Arrays.copyOfRange(container, (int) offset, (int) (offset + length));
+    }
+
+    private FlushRequest request(int n, byte[] data) throws IOException
+    {
+        String id = TestRequests.pnfsId(n);
+        Path file = Files.write(dir.resolve(id), data);
+        return TestRequests.flush(file, TestRequests.fileAttributes(id, data.length, "a:b"));
+    }
+}
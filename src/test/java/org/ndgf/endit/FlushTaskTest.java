@@ -0,0 +1,115 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Stream;
+
+import org.dcache.pool.nearline.spi.FlushRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushTaskTest
+{
+    private static final String ID = "0000000000000000000000000000000000A1";
+
+    private Path dir;
+    private Path outDir;
+    private FileRequestPublisher publisher;
+    private FlushTask task;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit-flush");
+        outDir = Files.createDirectory(dir.resolve("out"));
+        publisher = new FileRequestPublisher(Files.createDirectory(dir.resolve("request")));
+        task = new FlushTask(request(Files.write(dir.resolve(ID), new byte[10])), publisher, outDir,
+                             "osm", "endit", new EnditMetrics("test"));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        publisher.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void shouldNotStartOncePreempted() throws Exception
+    {
+        assertTrue(task.preempt());
+        try {
+            task.start();
+        } finally {
+            assertFalse(Files.exists(outDir.resolve(ID)));
+        }
+    }
+
+    @Test
+    public void shouldNotPreemptStartedTask() throws Exception
+    {
+        task.start();
+        assertFalse(task.preempt());
+        assertFalse(task.withdrawn().isDone());
+    }
+
+    @Test
+    public void shouldReportWithdrawalOnAbort() throws Exception
+    {
+        task.start();
+        assertTrue(task.abort());
+        task.settled();
+        assertTrue(task.withdrawn().get());
+        assertFalse(Files.exists(outDir.resolve(ID)));
+    }
+
+    @Test
+    public void shouldReportNoWithdrawalOnceMigrated() throws Exception
+    {
+        task.start();
+        Files.delete(outDir.resolve(ID));
+        assertFalse(task.abort());
+        assertFalse(task.withdrawn().get());
+    }
+
+    @Test
+    public void shouldReportNoWithdrawalWhenSettledWithoutAbort() throws Exception
+    {
+        task.start();
+        task.settled();
+        assertFalse(task.withdrawn().get());
+    }
+
+    private static FlushRequest request(Path file)
+    {
+        return TestRequests.flush(file, TestRequests.fileAttributes(ID, 10, "a:b"));
+    }
+}
@@ -0,0 +1,168 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexingRequestPublisherTest
+{
+    private Path dir;
+    private ScheduledExecutorService scheduler;
+    private IndexingRequestPublisher publisher;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit-index");
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        publisher = new IndexingRequestPublisher(new FileRequestPublisher(Files.createDirectory(dir.resolve("request"))),
+                                                 dir, TimeUnit.HOURS.toMillis(1),
+                                                 MoreExecutors.directExecutor(), scheduler);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        publisher.shutdown();
+        scheduler.shutdownNow();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static JsonObject request(long size)
+    {
+        JsonObject request = new JsonObject();
+        request.addProperty("action", "migrate");
+        request.addProperty("file_size", size);
+        request.addProperty("storage_class", "a:b");
+        return request;
+    }
+
+    private List<JsonObject> index() throws IOException
+    {
+        return Files.readAllLines(dir.resolve(IndexingRequestPublisher.INDEX_NAME), StandardCharsets.UTF_8).stream()
+                .map(line -> JsonParser.parseString(line).getAsJsonObject())
+                .collect(Collectors.toList());
+    }
+
+    private static String describe(JsonObject line)
+    {
+        return line.get("op").getAsString() + " " + line.get("pnfsid").getAsString();
+    }
+
+    @Test
+    public void shouldAppendChanges() throws Exception
+    {
+        publisher.publish("a", request(1));
+        publisher.publish("b", request(2));
+        publisher.completed("a");
+        publisher.withdraw("c");
+
+        List<JsonObject> index = index();
+        assertEquals(4, index.size());
+        assertTrue(index.get(0).has("generation"));
+        assertEquals("add a", describe(index.get(1)));
+        assertEquals(2, index.get(2).get("file_size").getAsLong());
+        assertEquals("remove a", describe(index.get(3)));
+    }
+
+    @Test
+    public void shouldCompactToPendingRequests() throws Exception
+    {
+        long generation = index().get(0).get("generation").getAsLong();
+        publisher.publish("a", request(1));
+        publisher.publish("b", request(2));
+        publisher.publish("c", request(3));
+        publisher.completed("b");
+        publisher.withdraw("a");
+
+        publisher.compact();
+
+        List<JsonObject> index = index();
+        assertEquals(2, index.size());
+        assertTrue(index.get(0).get("generation").getAsLong() > generation);
+        assertEquals("add c", describe(index.get(1)));
+        assertEquals(3, index.get(1).get("file_size").getAsLong());
+    }
+
+    @Test
+    public void shouldKeepLastAddOfRepublishedRequest() throws Exception
+    {
+        publisher.publish("a", request(1));
+        publisher.completed("a");
+        publisher.publish("a", request(2));
+        publisher.publish("b", request(3));
+
+        publisher.compact();
+
+        List<JsonObject> index = index();
+        assertEquals(3, index.size());
+        assertEquals("add a", describe(index.get(1)));
+        assertEquals(2, index.get(1).get("file_size").getAsLong());
+        assertEquals("add b", describe(index.get(2)));
+    }
+
+    @Test
+    public void shouldAppendToCompactedIndex() throws Exception
+    {
+        publisher.publish("a", request(1));
+        publisher.publish("b", request(2));
+        publisher.completed("a");
+        publisher.compact();
+        publisher.publish("c", request(3));
+        publisher.completed("b");
+
+        List<JsonObject> index = index();
+        assertEquals(4, index.size());
+        assertEquals("add b", describe(index.get(1)));
+        assertEquals("add c", describe(index.get(2)));
+        assertEquals("remove b", describe(index.get(3)));
+    }
+
+    @Test
+    public void shouldNotRewriteCompactIndex() throws Exception
+    {
+        publisher.publish("a", request(1));
+        long generation = index().get(0).get("generation").getAsLong();
+
+        publisher.compact();
+
+        assertEquals(generation, index().get(0).get("generation").getAsLong());
+    }
+}
@@ -0,0 +1,99 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void shouldReportZeroWhenEmpty()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void shouldRecordSmallLatenciesExactly()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i, TimeUnit.MICROSECONDS);
+        }
+        assertEquals(20, histogram.getCount());
+        assertEquals(10, histogram.getPercentile(0.5));
+        assertEquals(18, histogram.getPercentile(0.9));
+        assertEquals(20, histogram.getPercentile(1.0));
+        assertEquals(20, histogram.getMax());
+    }
+
+    @Test
+    public void shouldBoundRelativeError()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(4711);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1 + (long) Math.exp(random.nextDouble() * Math.log(1e10));
+            histogram.record(values[i], TimeUnit.MICROSECONDS);
+        }
+        Arrays.sort(values);
+        for (double fraction : new double[] { 0.1, 0.5, 0.9, 0.99 }) {
+            long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+            long reported = histogram.getPercentile(fraction);
+            assertTrue(fraction + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue(fraction + ": " + reported + " > " + exact, reported <= exact + exact / 16 + 1);
+        }
+    }
+
+    @Test
+    public void shouldNotReportMoreThanMax()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000, TimeUnit.MICROSECONDS);
+        assertEquals(1000, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void shouldConvertUnits()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3, TimeUnit.SECONDS);
+        assertEquals(3_000_000, histogram.getMax());
+    }
+
+    @Test
+    public void shouldAcceptExtremeValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5, TimeUnit.MILLISECONDS);
+        histogram.record(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1.0));
+    }
+}
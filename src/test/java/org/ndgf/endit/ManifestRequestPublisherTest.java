@@ -0,0 +1,260 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the manifest protocol against a stand-in Endit daemon that reads
+ * manifests and writes acknowledgements.
+ */
+public class ManifestRequestPublisherTest
+{
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private Path requestDir;
+    private final Map<String, Integer> failed = new ConcurrentHashMap<>();
+    private ManifestRequestPublisher publisher;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        requestDir = Files.createTempDirectory("endit-request");
+        publisher = new ManifestRequestPublisher(requestDir, 3, 50, id -> failed.merge(id, 1, Integer::sum));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        publisher.shutdown();
+        try (Stream<Path> files = Files.walk(requestDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void shouldBatchRequestsIntoManifests() throws Exception
+    {
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(id(i), request("recall"));
+        }
+
+        List<JsonObject> manifests = StandIn.awaitManifests(requestDir, 2);
+        int records = 0;
+        for (JsonObject manifest : manifests) {
+            assertTrue(manifest.size() <= 3);
+            records += manifest.size();
+        }
+        assertEquals(5, records);
+    }
+
+    @Test
+    public void shouldFailRequestRejectedByEndit() throws Exception
+    {
+        publisher.publish(id(1), request("recall"));
+        publisher.publish(id(2), request("recall"));
+
+        Path manifest = StandIn.awaitManifestFiles(requestDir, 1).get(0);
+        StandIn.acknowledge(manifest, id(1) + " 0", id(2) + " 42 tape unavailable");
+
+        awaitFailure(id(2));
+        EnditException failure = publisher.getFailure(id(2));
+        assertNotNull(failure);
+        assertEquals(42, failure.getReturnCode());
+        assertEquals("tape unavailable", failure.getMessage());
+        assertNull(publisher.getFailure(id(1)));
+        await(() -> !Files.exists(manifest));
+    }
+
+    @Test
+    public void shouldIgnoreAcknowledgementsOfFinishedRequests() throws Exception
+    {
+        publisher.publish(id(1), request("recall"));
+        publisher.publish(id(2), request("migrate"));
+        Path manifest = StandIn.awaitManifestFiles(requestDir, 1).get(0);
+
+        publisher.completed(id(1));
+        publisher.withdraw(id(2));
+        StandIn.acknowledge(manifest, id(1) + " 42 late", id(2) + " 42 late");
+
+        await(() -> !Files.exists(manifest));
+        assertNull(publisher.getFailure(id(1)));
+        assertNull(publisher.getFailure(id(2)));
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void shouldPublishCancelForWithdrawnRequest() throws Exception
+    {
+        publisher.publish(id(1), request("recall"));
+        StandIn.acknowledge(StandIn.awaitManifestFiles(requestDir, 1).get(0), id(1) + " 0");
+
+        assertTrue(publisher.withdraw(id(1)));
+
+        JsonObject manifest = StandIn.awaitManifests(requestDir, 1).get(0);
+        assertEquals("cancel", manifest.getAsJsonObject(id(1)).get("action").getAsString());
+    }
+
+    @Test
+    public void shouldReadOtherAcknowledgementsWhenOneIsUnreadable() throws Exception
+    {
+        /* A directory cannot be read as a file. */
+        Files.createDirectory(requestDir.resolve(ManifestRequestPublisher.MANIFEST_PREFIX + "0-0"
+                                                 + ManifestRequestPublisher.ACK_SUFFIX));
+        publisher.publish(id(1), request("recall"));
+
+        Path manifest = StandIn.awaitManifestFiles(requestDir, 1).get(0);
+        StandIn.acknowledge(manifest, id(1) + " 42 broken");
+
+        awaitFailure(id(1));
+        assertEquals(42, publisher.getFailure(id(1)).getReturnCode());
+    }
+
+    @Test
+    public void shouldWritePendingRecordsOnShutdown() throws Exception
+    {
+        ManifestRequestPublisher publisher =
+                new ManifestRequestPublisher(requestDir, 100, TimeUnit.HOURS.toMillis(1), id -> {});
+        publisher.publish(id(1), request("recall"));
+
+        publisher.shutdown();
+
+        JsonObject manifest = StandIn.awaitManifests(requestDir, 1).get(0);
+        assertTrue(manifest.has(id(1)));
+    }
+
+    @Test
+    public void shouldNotReplaceManifestsOfPublisherSharingDirectory() throws Exception
+    {
+        ManifestRequestPublisher other =
+                new ManifestRequestPublisher(requestDir, 1, TimeUnit.HOURS.toMillis(1), id -> {});
+        try {
+            for (int i = 0; i < 10; i++) {
+                publisher.publish(id(i), request("recall"));
+                other.publish(id(100 + i), request("recall"));
+            }
+            await(() -> {
+                int records = 0;
+                for (JsonObject manifest : StandIn.awaitManifests(requestDir, 1)) {
+                    records += manifest.size();
+                }
+                return records == 20;
+            });
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    private void awaitFailure(String id) throws Exception
+    {
+        await(() -> failed.containsKey(id));
+    }
+
+    private static String id(int n)
+    {
+        return String.format("0000%020X", n);
+    }
+
+    private static JsonObject request(String action)
+    {
+        JsonObject request = new JsonObject();
+        request.addProperty("action", action);
+        request.addProperty("file_size", 1);
+        return request;
+    }
+
+    private interface Condition
+    {
+        boolean holds() throws Exception;
+    }
+
+    private static void await(Condition condition) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            assertFalse("Timed out", System.currentTimeMillis() > deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Stand-in for the Endit daemon side of the manifest protocol.
+     */
+    private static class StandIn
+    {
+        static List<Path> awaitManifestFiles(Path requestDir, int count) throws Exception
+        {
+            List<Path> manifests = new ArrayList<>();
+            await(() -> {
+                manifests.clear();
+                try (DirectoryStream<Path> paths =
+                             Files.newDirectoryStream(requestDir, ManifestRequestPublisher.MANIFEST_PREFIX + "*")) {
+                    for (Path path : paths) {
+                        if (!path.toString().endsWith(ManifestRequestPublisher.ACK_SUFFIX)
+                            && !Files.exists(path.resolveSibling(path.getFileName() + ManifestRequestPublisher.ACK_SUFFIX))) {
+                            manifests.add(path);
+                        }
+                    }
+                }
+                return manifests.size() >= count;
+            });
+            manifests.sort(Comparator.naturalOrder());
+            return manifests;
+        }
+
+        static List<JsonObject> awaitManifests(Path requestDir, int count) throws Exception
+        {
+            List<JsonObject> manifests = new ArrayList<>();
+            for (Path path : awaitManifestFiles(requestDir, count)) {
+                String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                manifests.add(JsonParser.parseString(content).getAsJsonObject());
+            }
+            return manifests;
+        }
+
+        static void acknowledge(Path manifest, String... lines) throws IOException
+        {
+            Path tmp = manifest.resolveSibling("." + manifest.getFileName() + ManifestRequestPublisher.ACK_SUFFIX);
+            Files.write(tmp, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, manifest.resolveSibling(manifest.getFileName() + ManifestRequestPublisher.ACK_SUFFIX));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataBudgetTest
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static MetadataBudget.Bucket bucket(double rate, int burst)
+    {
+        MetadataBudget.Bucket bucket = new MetadataBudget.Bucket();
+        bucket.setRate(rate);
+        bucket.burst = burst;
+        return bucket;
+    }
+
+    @Test
+    public void shouldNotLimitWithoutRate()
+    {
+        MetadataBudget.Bucket bucket = bucket(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bucket.reserve(false) <= System.nanoTime());
+        }
+        assertEquals(0, bucket.throttled.sum());
+    }
+
+    @Test
+    public void shouldSpaceSlotsByInterval()
+    {
+        MetadataBudget.Bucket bucket = bucket(100, 0);
+        long first = bucket.reserve(false);
+        long second = bucket.reserve(false);
+        long third = bucket.reserve(false);
+        assertEquals(10 * MS, second - first);
+        assertEquals(10 * MS, third - second);
+        assertTrue(bucket.throttled.sum() > 0);
+    }
+
+    @Test
+    public void shouldAllowBurstAfterIdling() throws Exception
+    {
+        MetadataBudget.Bucket bucket = bucket(100, 5);
+        Thread.sleep(100);
+        long now = System.nanoTime();
+        /* The burst comes on top of the slot that is due. */
+        for (int i = 0; i <= 5; i++) {
+            assertTrue(bucket.reserve(false) <= now + MS);
+        }
+        assertTrue(bucket.reserve(false) > System.nanoTime());
+    }
+
+    @Test
+    public void shouldNotBankMoreThanBurst() throws Exception
+    {
+        MetadataBudget.Bucket bucket = bucket(1000, 2);
+        Thread.sleep(50);
+        long now = System.nanoTime();
+        long first = bucket.reserve(false);
+        assertTrue(first >= now - 2 * MS);
+        assertEquals(first + MS, bucket.reserve(false));
+        assertEquals(first + 2 * MS, bucket.reserve(false));
+    }
+
+    @Test
+    public void shouldYieldUntilIdle()
+    {
+        MetadataBudget.Bucket bucket = bucket(100, 0);
+        bucket.reserve(false);
+        long pending = bucket.reserve(false);
+        long slot = bucket.reserve(true);
+        assertTrue(System.nanoTime() >= pending + 10 * MS);
+        assertTrue(slot >= pending + 10 * MS);
+    }
+
+    @Test
+    public void shouldYieldForBoundedTime()
+    {
+        MetadataBudget.Bucket bucket = bucket(1000, 0);
+        long last = 0;
+        for (int i = 0; i < 200; i++) {
+            last = bucket.reserve(false);
+        }
+        long begin = System.nanoTime();
+        long slot = bucket.reserve(true);
+        long yielded = System.nanoTime() - begin;
+        assertTrue(yielded >= MetadataBudget.MAX_YIELD * MS);
+        assertTrue(yielded < 100 * MS);
+        assertEquals(last + MS, slot);
+    }
+
+    @Test
+    public void shouldReportThrottling()
+    {
+        MetadataBudget.Bucket bucket = bucket(10, 0);
+        bucket.reserve(false);
+        long begin = System.nanoTime();
+        long slot = bucket.reserve(false);
+        assertTrue(bucket.throttled.sum() >= slot - begin - MS);
+    }
+
+    @Test
+    public void shouldDeferWaitsUntilActionReturns()
+    {
+        MetadataBudget.setRate(MetadataBudget.Kind.RENAME, 20);
+        MetadataBudget.setBurst(0);
+        try {
+            long[] inside = new long[1];
+            long begin = System.nanoTime();
+            MetadataBudget.deferring(() -> {
+                for (int i = 0; i < 3; i++) {
+                    MetadataBudget.acquire(MetadataBudget.Kind.RENAME);
+                }
+                inside[0] = System.nanoTime();
+            });
+            long end = System.nanoTime();
+            assertTrue(inside[0] - begin < 50 * MS);
+            assertTrue(end - begin >= 90 * MS);
+        } finally {
+            MetadataBudget.setRate(MetadataBudget.Kind.RENAME, 0);
+            MetadataBudget.setBurst(MetadataBudget.DEFAULT_BURST);
+        }
+    }
+
+    @Test
+    public void shouldNotWaitWhenExempt()
+    {
+        MetadataBudget.setRate(MetadataBudget.Kind.UNLINK, 10);
+        MetadataBudget.setBurst(0);
+        try {
+            long begin = System.nanoTime();
+            MetadataBudget.exempt(() -> MetadataBudget.deferring(() -> {
+                for (int i = 0; i < 5; i++) {
+                    MetadataBudget.acquire(MetadataBudget.Kind.UNLINK);
+                }
+            }));
+            assertTrue(System.nanoTime() - begin < 50 * MS);
+        } finally {
+            MetadataBudget.setRate(MetadataBudget.Kind.UNLINK, 0);
+            MetadataBudget.setBurst(MetadataBudget.DEFAULT_BURST);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the queue on a single thread that is held busy while the starts under test
+ * are submitted, so that the order in which they run is decided by the queue alone.
+ */
+public class PublicationQueueTest
+{
+    private Stage stage;
+    private PublicationQueue queue;
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    @Before
+    public void setUp()
+    {
+        stage = Stage.fixed("test", 1);
+        queue = new PublicationQueue(stage);
+    }
+
+    @After
+    public void tearDown()
+    {
+        blocked.countDown();
+        stage.shutdown();
+    }
+
+    @Test
+    public void shouldStartHigherPriorityFirst() throws Exception
+    {
+        block("a");
+        start("bulk-1", RecallClassifier.BULK, "a");
+        start("bulk-2", RecallClassifier.BULK, "a");
+        start("interactive", RecallClassifier.INTERACTIVE, "a");
+        unblock(3);
+
+        assertEquals(Arrays.asList("interactive", "bulk-1", "bulk-2"), started);
+    }
+
+    @Test
+    public void shouldServeStorageClassesByWeight() throws Exception
+    {
+        queue.configure(Map.of("a", 2.0), 1.0);
+        block("c");
+        for (int i = 0; i < 6; i++) {
+            start("a", RecallClassifier.BULK, "a");
+        }
+        for (int i = 0; i < 6; i++) {
+            start("b", RecallClassifier.BULK, "b");
+        }
+        unblock(12);
+
+        List<String> first = started.subList(0, 6);
+        assertEquals(4, Collections.frequency(first, "a"));
+        assertEquals(2, Collections.frequency(first, "b"));
+    }
+
+    @Test
+    public void shouldServeEqualClassesInSubmissionOrder() throws Exception
+    {
+        block("a");
+        for (int i = 0; i < 5; i++) {
+            start("a-" + i, RecallClassifier.BULK, "a");
+        }
+        unblock(5);
+
+        assertEquals(Arrays.asList("a-0", "a-1", "a-2", "a-3", "a-4"), started);
+    }
+
+    @Test
+    public void shouldSkipClassOverItsShare() throws Exception
+    {
+        queue.configure(Map.of(), 0.5);
+        block("a");
+        start("a-1", RecallClassifier.INTERACTIVE, "a");
+        start("a-2", RecallClassifier.INTERACTIVE, "a");
+        start("b-1", RecallClassifier.BULK, "b");
+        unblock(3);
+
+        assertEquals(Arrays.asList("b-1", "a-1", "a-2"), started);
+    }
+
+    @Test
+    public void shouldIgnoreShareWithoutCompetition() throws Exception
+    {
+        queue.configure(Map.of(), 0.5);
+        block("a");
+        start("a-1", RecallClassifier.BULK, "a");
+        start("a-2", RecallClassifier.BULK, "a");
+        unblock(2);
+
+        assertEquals(Arrays.asList("a-1", "a-2"), started);
+    }
+
+    @Test
+    public void shouldDeferStartsUntilRelease() throws Exception
+    {
+        queue.configure(Map.of(), 0.3);
+        CountDownLatch first = new CountDownLatch(2);
+        PublicationQueue.Ticket a = start("a-1", RecallClassifier.BULK, "a", first);
+        start("b-1", RecallClassifier.BULK, "b", first);
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+
+        /* With the blocking start, every class holds a third of the published
+         * requests, more than its share.
+         */
+        block("c");
+        start("a-2", RecallClassifier.BULK, "a");
+        start("b-2", RecallClassifier.BULK, "b");
+        unblock(2);
+        Thread.sleep(100);
+        assertEquals(2, started.size());
+        assertEquals(2, queue.size());
+
+        a.release();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (started.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("a-1", "b-1", "a-2", "b-2"), started);
+    }
+
+    /**
+     * Occupies the thread of the stage until {@link #unblock} is called. The start
+     * is in flight until its ticket is released, so it counts towards the share of
+     * its class.
+     */
+    private void block(String storageClass) throws InterruptedException
+    {
+        CountDownLatch running = new CountDownLatch(1);
+        queue.ticket(RecallClassifier.BULK, storageClass).execute(() -> {
+            running.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Lets the blocked thread go and waits for the given number of starts to run.
+     */
+    private void unblock(int starts) throws InterruptedException
+    {
+        blocked.countDown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (started.size() < starts && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(starts, started.size());
+    }
+
+    private PublicationQueue.Ticket start(String name, int priority, String storageClass)
+    {
+        return start(name, priority, storageClass, null);
+    }
+
+    private PublicationQueue.Ticket start(String name, int priority, String storageClass, CountDownLatch latch)
+    {
+        PublicationQueue.Ticket ticket = queue.ticket(priority, storageClass);
+        ticket.execute(() -> {
+            started.add(name);
+            if (latch != null) {
+                latch.countDown();
+            }
+        });
+        return ticket;
+    }
+}
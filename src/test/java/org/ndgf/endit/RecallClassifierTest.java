@@ -0,0 +1,80 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import diskCacheV111.vehicles.GenericStorageInfo;
+import org.dcache.vehicles.FileAttributes;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecallClassifierTest
+{
+    private final RecallClassifier classifier = new RecallClassifier();
+
+    private static FileAttributes file(String storageClass, String path)
+    {
+        FileAttributes fileAttributes = TestRequests.fileAttributes(TestRequests.pnfsId(1), 10, storageClass);
+        if (path != null) {
+            ((GenericStorageInfo) fileAttributes.getStorageInfo()).setKey("path", path);
+        }
+        return fileAttributes;
+    }
+
+    @Test
+    public void shouldClassifyAsBulkByDefault()
+    {
+        assertEquals(RecallClassifier.BULK, classifier.classify(file("atlas:raw", "/atlas/raw/a")));
+    }
+
+    @Test
+    public void shouldClassifyByStorageClass()
+    {
+        classifier.configure(Pattern.compile("atlas:.*"), null);
+        assertEquals(RecallClassifier.INTERACTIVE, classifier.classify(file("atlas:raw", null)));
+        assertEquals(RecallClassifier.BULK, classifier.classify(file("cms:raw", null)));
+    }
+
+    @Test
+    public void shouldClassifyByPath()
+    {
+        classifier.configure(null, Pattern.compile("/user/.*"));
+        assertEquals(RecallClassifier.INTERACTIVE, classifier.classify(file("atlas:raw", "/user/a/b")));
+        assertEquals(RecallClassifier.BULK, classifier.classify(file("atlas:raw", "/atlas/raw/a")));
+        assertEquals(RecallClassifier.BULK, classifier.classify(file("atlas:raw", null)));
+    }
+
+    @Test
+    public void shouldMatchWholeStorageClass()
+    {
+        classifier.configure(Pattern.compile("atlas"), null);
+        assertEquals(RecallClassifier.BULK, classifier.classify(file("atlas:raw", null)));
+    }
+
+    @Test
+    public void shouldApplyNewPatterns()
+    {
+        classifier.configure(Pattern.compile("atlas:.*"), null);
+        classifier.configure(Pattern.compile("cms:.*"), null);
+        assertEquals(RecallClassifier.BULK, classifier.classify(file("atlas:raw", null)));
+        assertEquals(RecallClassifier.INTERACTIVE, classifier.classify(file("cms:raw", null)));
+    }
+}
@@ -0,0 +1,102 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestFutureTest
+{
+    /**
+     * Future of a task that can only be aborted if allowed.
+     */
+    private static class Task extends AbstractFuture<String>
+    {
+        final boolean abortable;
+
+        Task(boolean abortable)
+        {
+            this.abortable = abortable;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return abortable && super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected boolean set(String value)
+        {
+            return super.set(value);
+        }
+    }
+
+    private static ListenableFuture<String> publish(RequestFuture<String> result,
+                                                    ListenableFuture<Void> activation, Task task)
+    {
+        return result.follow(Futures.transformAsync(activation, ignored -> result.scheduled(task),
+                                                    MoreExecutors.directExecutor()));
+    }
+
+    @Test
+    public void shouldCancelBeforeTaskIsScheduled()
+    {
+        SettableFuture<Void> activation = SettableFuture.create();
+        RequestFuture<String> result = new RequestFuture<>();
+        publish(result, activation, new Task(true));
+
+        assertTrue(result.cancel(true));
+        assertTrue(result.isCancelled());
+        assertTrue(activation.isCancelled());
+    }
+
+    @Test
+    public void shouldCancelWhenTaskIsAborted()
+    {
+        Task task = new Task(true);
+        RequestFuture<String> result = new RequestFuture<>();
+        publish(result, Futures.immediateFuture(null), task);
+
+        assertTrue(result.cancel(true));
+        assertTrue(task.isCancelled());
+        assertTrue(result.isCancelled());
+    }
+
+    @Test
+    public void shouldNotCancelWhenAbortIsRefused() throws Exception
+    {
+        Task task = new Task(false);
+        RequestFuture<String> result = new RequestFuture<>();
+        publish(result, Futures.immediateFuture(null), task);
+
+        assertFalse(result.cancel(true));
+        assertFalse(result.isDone());
+
+        task.set("done");
+        assertEquals("done", result.get());
+    }
+}
@@ -0,0 +1,90 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest
+{
+    @Test
+    public void shouldBeDisabledByDefault()
+    {
+        assertFalse(new RetryPolicy().isEnabled());
+    }
+
+    @Test
+    public void shouldOnlyRetryConfiguredCodes()
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.configure(Set.of(11), 3, 1000, 60000);
+        assertTrue(policy.isEnabled());
+        assertTrue(policy.shouldRetry(new EnditException(11, "busy"), 0));
+        assertFalse(policy.shouldRetry(new EnditException(12, "lost"), 0));
+    }
+
+    @Test
+    public void shouldStopRetryingAfterAttempts()
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.configure(Set.of(11), 3, 1000, 60000);
+        assertTrue(policy.shouldRetry(new EnditException(11, "busy"), 2));
+        assertFalse(policy.shouldRetry(new EnditException(11, "busy"), 3));
+    }
+
+    @Test
+    public void shouldBackOffExponentiallyWithJitter()
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.configure(Set.of(11), 10, 1000, 60000);
+        for (int i = 0; i < 1000; i++) {
+            assertBetween(500, 1000, policy.getDelay(1));
+            assertBetween(1000, 2000, policy.getDelay(2));
+            assertBetween(4000, 8000, policy.getDelay(4));
+        }
+    }
+
+    @Test
+    public void shouldCapDelay()
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.configure(Set.of(11), 100, 1000, 60000);
+        for (int retry : new int[] { 7, 31, 32, 63, 64, 1000, Integer.MAX_VALUE }) {
+            assertBetween(30000, 60000, policy.getDelay(retry));
+        }
+    }
+
+    @Test
+    public void shouldNotOverflowWithLargeInitialDelay()
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.configure(Set.of(11), 100, Long.MAX_VALUE / 4, Long.MAX_VALUE / 2);
+        for (int retry = 1; retry < 100; retry++) {
+            assertTrue(policy.getDelay(retry) >= Long.MAX_VALUE / 8);
+        }
+    }
+
+    private static void assertBetween(long min, long max, long value)
+    {
+        assertTrue(value + " not in [" + min + ", " + max + "]", min <= value && value <= max);
+    }
+}
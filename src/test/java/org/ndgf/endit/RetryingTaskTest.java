@@ -0,0 +1,160 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryingTaskTest
+{
+    private static final String ID = TestRequests.pnfsId(1);
+    private static final int TRANSIENT = 42;
+
+    /**
+     * Task failing its first poll with a transient failure.
+     */
+    private static class Task implements PollingTask<String>
+    {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public String getId()
+        {
+            return ID;
+        }
+
+        @Override
+        public Action getAction()
+        {
+            return Action.RECALL;
+        }
+
+        @Override
+        public synchronized String start()
+        {
+            calls.add("start");
+            return (calls.size() > 2) ? "done" : null;
+        }
+
+        @Override
+        public synchronized String poll() throws EnditException
+        {
+            calls.add("poll");
+            throw new EnditException(TRANSIENT, "try again");
+        }
+
+        @Override
+        public synchronized boolean abort()
+        {
+            calls.add("abort");
+            return true;
+        }
+    }
+
+    private Path dir;
+    private FileRequestPublisher publisher;
+    private ScheduledThreadPoolExecutor scheduler;
+    private final BlockingQueue<Runnable> publications = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> polls = new LinkedBlockingQueue<>();
+    private final Task task = new Task();
+    private RetryingTask<String> retrying;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit-retry");
+        publisher = new FileRequestPublisher(dir);
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        RetryPolicy policy = new RetryPolicy();
+        policy.configure(Set.of(TRANSIENT), 3, 100, 100);
+        retrying = new RetryingTask<>(task, policy, publisher, new EnditMetrics("test"), scheduler,
+                                      publications::add, polls::add);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        scheduler.shutdownNow();
+        publisher.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void shouldPublishAgainThroughPublicationExecutor() throws Exception
+    {
+        retrying.start();
+        assertNull(retrying.poll());
+        assertNull(retrying.poll());
+
+        Runnable publication = publications.poll(10, TimeUnit.SECONDS);
+        assertNotNull(publication);
+        publication.run();
+        assertEquals(ID, polls.poll(10, TimeUnit.SECONDS));
+        assertEquals("done", retrying.poll());
+        assertEquals(List.of("start", "poll", "start"), task.calls);
+    }
+
+    @Test
+    public void shouldAbortDuringBackOffWithoutTouchingTask() throws Exception
+    {
+        retrying.start();
+        assertNull(retrying.poll());
+        assertEquals(1, scheduler.getQueue().size());
+
+        assertTrue(retrying.abort());
+        assertEquals(0, scheduler.getQueue().size());
+        assertEquals(List.of("start", "poll"), task.calls);
+        assertNull(publications.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shouldNotPublishAgainOnceAborted() throws Exception
+    {
+        retrying.start();
+        assertNull(retrying.poll());
+        Runnable publication = publications.poll(10, TimeUnit.SECONDS);
+        assertNotNull(publication);
+
+        assertTrue(retrying.abort());
+        publication.run();
+        assertEquals(List.of("start", "poll"), task.calls);
+        assertTrue(polls.isEmpty());
+    }
+}
@@ -0,0 +1,155 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SharedWatchServiceTest
+{
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit-out");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Records the names of the changed files.
+     */
+    private static class Recorder implements SharedWatchService.Listener
+    {
+        final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void changed(Path path)
+        {
+            changes.add(path.getFileName().toString());
+        }
+
+        @Override
+        public void overflow()
+        {
+            changes.add("overflow");
+        }
+
+        String next() throws InterruptedException
+        {
+            return changes.poll(10, TimeUnit.SECONDS);
+        }
+
+        String none() throws InterruptedException
+        {
+            return changes.poll(200, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void shouldShareServicePerFileSystem() throws Exception
+    {
+        SharedWatchService first = SharedWatchService.acquire(dir.getFileSystem());
+        SharedWatchService second = SharedWatchService.acquire(dir.getFileSystem());
+        try {
+            assertSame(first, second);
+        } finally {
+            second.release();
+        }
+
+        /* The remaining reference keeps the service alive. */
+        Recorder recorder = new Recorder();
+        first.register(dir, recorder, StandardWatchEventKinds.ENTRY_CREATE);
+        Files.createFile(dir.resolve("a"));
+        assertEquals("a", recorder.next());
+        first.release();
+
+        SharedWatchService third = SharedWatchService.acquire(dir.getFileSystem());
+        try {
+            assertNotSame(first, third);
+        } finally {
+            third.release();
+        }
+    }
+
+    @Test
+    public void shouldDispatchEventsToListenersOfTheirKinds() throws Exception
+    {
+        SharedWatchService service = SharedWatchService.acquire(dir.getFileSystem());
+        try {
+            Recorder created = new Recorder();
+            Recorder deleted = new Recorder();
+            service.register(dir, created, StandardWatchEventKinds.ENTRY_CREATE);
+            service.register(dir, deleted, StandardWatchEventKinds.ENTRY_DELETE);
+
+            Files.createFile(dir.resolve("a"));
+            assertEquals("a", created.next());
+            Files.delete(dir.resolve("a"));
+            assertEquals("a", deleted.next());
+
+            assertNull(created.none());
+            assertNull(deleted.none());
+        } finally {
+            service.release();
+        }
+    }
+
+    @Test
+    public void shouldKeepWatchingForRemainingListeners() throws Exception
+    {
+        SharedWatchService service = SharedWatchService.acquire(dir.getFileSystem());
+        try {
+            Recorder first = new Recorder();
+            Recorder second = new Recorder();
+            SharedWatchService.Registration registration =
+                    service.register(dir, first, StandardWatchEventKinds.ENTRY_CREATE);
+            service.register(dir, second, StandardWatchEventKinds.ENTRY_CREATE);
+
+            registration.cancel();
+            Files.createFile(dir.resolve("a"));
+
+            assertEquals("a", second.next());
+            assertNull(first.none());
+        } finally {
+            service.release();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StageTaskTest
+{
+    private static final String ID = TestRequests.pnfsId(0xA1);
+
+    private Path dir;
+    private Path inDir;
+    private FileRequestPublisher publisher;
+    private EnditMetrics metrics;
+    private ArrivalDetector arrivalDetector;
+    private StageTask task;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("endit-stage");
+        inDir = Files.createDirectory(dir.resolve("in"));
+        Path requestDir = Files.createDirectory(dir.resolve("request"));
+        publisher = new FileRequestPublisher(requestDir);
+        metrics = new EnditMetrics("test");
+        arrivalDetector = new ArrivalDetector();
+        arrivalDetector.configure(ArrivalDetector.Strategy.MTIME, 300);
+        task = new StageTask(TestRequests.stage(dir.resolve(ID), TestRequests.fileAttributes(ID, 10, "a:b")),
+                             publisher, requestDir, inDir, metrics, arrivalDetector, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        publisher.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private List<String> events()
+    {
+        return metrics.dumpTrace(ID).stream()
+                .map(line -> line.split(" ")[2])
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void shouldTraceRepeatedSizeMismatchOnce() throws Exception
+    {
+        task.start();
+        Path inFile = inDir.resolve(ID);
+        Files.write(inFile, new byte[4]);
+        assertNull(task.poll());
+        assertNull(task.poll());
+
+        Files.write(inFile, new byte[10]);
+        Files.setLastModifiedTime(inFile, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        assertNotNull(task.poll());
+
+        assertEquals(List.of("CREATED", "REQUEST_WRITTEN", "SIZE_MISMATCH", "FILE_SEEN", "GRACE", "MOVED"),
+                     events());
+    }
+
+    @Test
+    public void shouldTraceRepeatedIncompleteCheckOnce() throws Exception
+    {
+        task.start();
+        Path inFile = inDir.resolve(ID);
+        Files.write(inFile, new byte[10]);
+
+        /* Keeps modifying the file, so that no quiet period passes. */
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+        AtomicLong modified = new AtomicLong(System.currentTimeMillis());
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                Files.setLastModifiedTime(inFile, FileTime.fromMillis(modified.addAndGet(1000)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, 0, 50, TimeUnit.MILLISECONDS);
+        try {
+            assertNull(task.poll());
+            assertNull(task.poll());
+        } finally {
+            writer.shutdownNow();
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        Files.setLastModifiedTime(inFile, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        assertNotNull(task.poll());
+
+        assertEquals(List.of("CREATED", "REQUEST_WRITTEN", "FILE_SEEN", "GRACE", "INCOMPLETE", "MOVED"),
+                     events());
+    }
+}
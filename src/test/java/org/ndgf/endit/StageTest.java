@@ -0,0 +1,124 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StageTest
+{
+    private Stage stage;
+
+    @After
+    public void tearDown()
+    {
+        stage.shutdown();
+    }
+
+    /**
+     * Submits the given number of tasks that block until released and returns the
+     * largest number of tasks seen running at the same time once all have run.
+     */
+    private int run(int tasks, CountDownLatch release) throws InterruptedException
+    {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            stage.execute(() -> {
+                max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        Thread.sleep(100);
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return max.get();
+    }
+
+    @Test
+    public void shouldRunUpToThreadsInParallel() throws Exception
+    {
+        stage = Stage.fixed("test", 2);
+        assertEquals(2, run(10, new CountDownLatch(1)));
+        assertEquals(10, stage.getCompletedCount());
+    }
+
+    @Test
+    public void shouldGrowInPlace() throws Exception
+    {
+        stage = Stage.fixed("test", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        stage.setThreads(4);
+        assertEquals(4, stage.getThreads());
+        assertEquals(4, run(10, release));
+    }
+
+    @Test
+    public void shouldShrinkInPlace() throws Exception
+    {
+        stage = Stage.fixed("test", 4);
+        stage.setThreads(1);
+        assertEquals(1, stage.getThreads());
+        assertEquals(1, run(10, new CountDownLatch(1)));
+    }
+
+    @Test
+    public void shouldKeepQueuedWorkWhenResized() throws Exception
+    {
+        stage = Stage.fixed("test", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            stage.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        assertEquals(4, stage.getQueueDepth());
+        stage.setThreads(3);
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldResizeScheduledStage() throws Exception
+    {
+        stage = Stage.scheduled("test", 1);
+        stage.setThreads(3);
+        assertEquals(3, stage.getThreads());
+        assertEquals(3, run(6, new CountDownLatch(1)));
+    }
+}
@@ -0,0 +1,135 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StallDetectorTest
+{
+    private static final long WINDOW = 200;
+
+    private Path inDir;
+    private Path outDir;
+    private StallDetector detector;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        inDir = Files.createTempDirectory("endit-in");
+        outDir = Files.createTempDirectory("endit-out");
+        detector = new StallDetector(WINDOW, Collections.singletonList(inDir), Collections.singletonList(outDir));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        delete(inDir);
+        delete(outDir);
+    }
+
+    private static void delete(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void shouldStallWithoutProgress() throws Exception
+    {
+        assertFalse(detector.check(true));
+        Thread.sleep(2 * WINDOW);
+        assertTrue(detector.check(true));
+        assertTrue(detector.isStalled());
+    }
+
+    @Test
+    public void shouldNotStallWhileIdle() throws Exception
+    {
+        detector.check(false);
+        Thread.sleep(2 * WINDOW);
+        assertFalse(detector.check(false));
+        assertFalse(detector.isStalled());
+    }
+
+    @Test
+    public void shouldResumeWhenReportedProgress() throws Exception
+    {
+        detector.check(true);
+        Thread.sleep(2 * WINDOW);
+        detector.check(true);
+        detector.progress();
+        assertTrue(detector.check(true));
+        assertFalse(detector.isStalled());
+    }
+
+    @Test
+    public void shouldResumeWhenFilesArrive() throws Exception
+    {
+        detector.check(true);
+        Thread.sleep(2 * WINDOW);
+        detector.check(true);
+        Files.createFile(inDir.resolve("a"));
+        /* Do not depend on the timestamp granularity of the file system. */
+        Files.setLastModifiedTime(inDir, FileTime.fromMillis(0));
+        assertTrue(detector.check(true));
+        assertFalse(detector.isStalled());
+    }
+
+    @Test
+    public void shouldResumeWhenFilesDepart() throws Exception
+    {
+        Files.createFile(outDir.resolve("a"));
+        Files.createFile(outDir.resolve("b"));
+        detector.check(true);
+        Thread.sleep(2 * WINDOW);
+        detector.check(true);
+        assertTrue(detector.isStalled());
+
+        Files.delete(outDir.resolve("a"));
+        assertTrue(detector.check(true));
+        assertFalse(detector.isStalled());
+    }
+
+    @Test
+    public void shouldNotMistakeNewFilesForProgress() throws Exception
+    {
+        Files.createFile(outDir.resolve("a"));
+        detector.check(true);
+        Thread.sleep(2 * WINDOW);
+        detector.check(true);
+        assertTrue(detector.isStalled());
+
+        Files.createFile(outDir.resolve("b"));
+        assertFalse(detector.check(true));
+        assertTrue(detector.isStalled());
+    }
+}
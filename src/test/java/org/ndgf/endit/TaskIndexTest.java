@@ -0,0 +1,139 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TaskIndexTest
+{
+    @Test
+    public void shouldReplaceValueOnPut()
+    {
+        TaskIndex<String, String> index = new TaskIndex<>();
+        assertNull(index.put("a", "1"));
+        assertEquals("1", index.put("a", "2"));
+        assertEquals("2", index.get("a"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void shouldKeepValueOnPutIfAbsent()
+    {
+        TaskIndex<String, String> index = new TaskIndex<>();
+        assertNull(index.putIfAbsent("a", "1"));
+        assertEquals("1", index.putIfAbsent("a", "2"));
+        assertEquals("1", index.get("a"));
+    }
+
+    @Test
+    public void shouldOnlyRemoveMatchingValue()
+    {
+        TaskIndex<String, String> index = new TaskIndex<>();
+        String value = "1";
+        index.put("a", value);
+        assertFalse(index.remove("a", new String("1")));
+        assertTrue(index.remove("a", value));
+        assertNull(index.get("a"));
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void shouldFindEntriesWithCollidingHashes()
+    {
+        TaskIndex<Key, Integer> index = new TaskIndex<>();
+        for (int i = 0; i < 100; i++) {
+            index.put(new Key(i), i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            assertEquals(i, (int) index.remove(new Key(i)));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals((i % 2 == 0) ? null : i, index.get(new Key(i)));
+        }
+        assertEquals(50, index.size());
+    }
+
+    @Test
+    public void shouldMatchHashMapUnderRandomOperations()
+    {
+        TaskIndex<Integer, Integer> index = new TaskIndex<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(4711);
+        for (int i = 0; i < 200000; i++) {
+            Integer key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), index.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), index.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(index.values()));
+
+        for (Integer key : expected.keySet()) {
+            index.remove(key);
+        }
+        assertTrue(index.isEmpty());
+        assertTrue(index.values().isEmpty());
+    }
+
+    @Test
+    public void shouldReturnStoredInstances()
+    {
+        TaskIndex<String, Object> index = new TaskIndex<>();
+        Object value = new Object();
+        index.put("a", value);
+        assertSame(value, index.values().get(0));
+    }
+
+    private static class Key
+    {
+        private final int n;
+
+        Key(int n)
+        {
+            this.n = n;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Key && ((Key) o).n == n;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return n % 3;
+        }
+    }
+}
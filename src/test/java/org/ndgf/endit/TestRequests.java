@@ -0,0 +1,153 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import diskCacheV111.util.PnfsId;
+import diskCacheV111.vehicles.GenericStorageInfo;
+import org.dcache.pool.nearline.spi.FlushRequest;
+import org.dcache.pool.nearline.spi.NearlineRequest;
+import org.dcache.pool.nearline.spi.RemoveRequest;
+import org.dcache.pool.nearline.spi.StageRequest;
+import org.dcache.vehicles.FileAttributes;
+
+/**
+ * Fake nearline requests for tests.
+ *
+ * The requests answer the getters they were created with, activate and allocate
+ * right away, and record their outcome in a future returned by {@link #result}.
+ * Any other call fails with an UnsupportedOperationException.
+ */
+final class TestRequests
+{
+    private TestRequests()
+    {
+    }
+
+    static String pnfsId(int n)
+    {
+        return String.format("0000%032X", n);
+    }
+
+    static FileAttributes fileAttributes(String id, long size, String storageClass)
+    {
+        FileAttributes fileAttributes = new FileAttributes();
+        fileAttributes.setPnfsId(new PnfsId(id));
+        fileAttributes.setSize(size);
+        fileAttributes.setStorageClass(storageClass);
+        fileAttributes.setStorageInfo(new GenericStorageInfo("osm", storageClass));
+        fileAttributes.setChecksums(Collections.emptySet());
+        return fileAttributes;
+    }
+
+    static FlushRequest flush(Path file, FileAttributes fileAttributes)
+    {
+        Handler<?> handler = new Handler<>();
+        handler.answers.put("getFile", file.toFile());
+        handler.answers.put("getFileAttributes", fileAttributes);
+        return proxy(FlushRequest.class, handler);
+    }
+
+    static StageRequest stage(Path file, FileAttributes fileAttributes)
+    {
+        Handler<?> handler = new Handler<>();
+        handler.answers.put("getFile", file.toFile());
+        handler.answers.put("getFileAttributes", fileAttributes);
+        return proxy(StageRequest.class, handler);
+    }
+
+    static RemoveRequest remove(URI uri)
+    {
+        Handler<?> handler = new Handler<>();
+        handler.answers.put("getUri", uri);
+        return proxy(RemoveRequest.class, handler);
+    }
+
+    /**
+     * Returns the future completed or failed by the given request.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ListenableFuture<T> result(NearlineRequest<T> request)
+    {
+        return ((Handler<T>) Proxy.getInvocationHandler(request)).result;
+    }
+
+    private static <R> R proxy(Class<R> type, Handler<?> handler)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static class Handler<T> implements InvocationHandler
+    {
+        final Map<String, Object> answers = new HashMap<>();
+        final UUID id = UUID.randomUUID();
+        final SettableFuture<T> result = SettableFuture.create();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if (answers.containsKey(name)) {
+                return answers.get(name);
+            }
+            switch (name) {
+            case "getId":
+                return id;
+            case "getDeadline":
+                return Long.MAX_VALUE;
+            case "activate":
+            case "allocate":
+                return Futures.immediateFuture(null);
+            case "completed":
+                result.set((T) args[0]);
+                return null;
+            case "failed":
+                result.setException((args.length == 1) ? (Exception) args[0]
+                                                        : new EnditException((Integer) args[0], (String) args[1]));
+                return null;
+            case "toString":
+                return type(proxy) + " " + id;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(name);
+            }
+        }
+
+        private static String type(Object proxy)
+        {
+            return proxy.getClass().getInterfaces()[0].getSimpleName();
+        }
+    }
+}
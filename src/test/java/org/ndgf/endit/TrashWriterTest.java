@@ -0,0 +1,160 @@
+/* dCache Endit Nearline Storage Provider
+ *
+ * Copyright (C) 2026 Gerd Behrmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ndgf.endit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.dcache.pool.nearline.spi.RemoveRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrashWriterTest
+{
+    private Path trashDir;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        trashDir = Files.createTempDirectory("endit-trash");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(trashDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void shouldWriteFullBatch() throws Exception
+    {
+        TrashWriter writer = new TrashWriter(trashDir, 3, TimeUnit.HOURS.toMillis(1));
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(writer.add(request(i)));
+            }
+            for (Future<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(3, lines());
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldNotExceedBatchSize() throws Exception
+    {
+        TrashWriter writer = new TrashWriter(trashDir, 3, TimeUnit.HOURS.toMillis(1));
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(writer.add(request(i)));
+        }
+        writer.shutdown();
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(10, lines());
+        try (Stream<Path> files = Files.list(trashDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                assertTrue(Files.readAllLines(file).size() <= 3);
+            }
+        }
+    }
+
+    @Test
+    public void shouldDrainPendingEntriesOnShutdown() throws Exception
+    {
+        TrashWriter writer = new TrashWriter(trashDir, 100, TimeUnit.HOURS.toMillis(1));
+        Future<Void> future = writer.add(request(1));
+        assertFalse(future.isDone());
+
+        writer.shutdown();
+
+        future.get(10, TimeUnit.SECONDS);
+        assertEquals(1, lines());
+    }
+
+    @Test
+    public void shouldWriteEntriesAddedAfterShutdown() throws Exception
+    {
+        TrashWriter writer = new TrashWriter(trashDir, 1, TimeUnit.HOURS.toMillis(1));
+        writer.shutdown();
+
+        writer.add(request(1)).get(10, TimeUnit.SECONDS);
+        writer.add(request(2)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(2, lines());
+    }
+
+    @Test
+    public void shouldNotReplaceBatchesOfWriterSharingDirectory() throws Exception
+    {
+        TrashWriter first = new TrashWriter(trashDir, 1, TimeUnit.HOURS.toMillis(1));
+        TrashWriter second = new TrashWriter(trashDir, 1, TimeUnit.HOURS.toMillis(1));
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(first.add(request(i)));
+                futures.add(second.add(request(i)));
+            }
+            for (Future<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(20, lines());
+        } finally {
+            first.shutdown();
+            second.shutdown();
+        }
+    }
+
+    private int lines() throws IOException
+    {
+        int count = 0;
+        try (Stream<Path> files = Files.list(trashDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                assertTrue(file.getFileName().toString().startsWith(TrashWriter.BATCH_PREFIX));
+                count += Files.readAllLines(file).size();
+            }
+        }
+        return count;
+    }
+
+    private static RemoveRequest request(int i)
+    {
+        return TestRequests.remove(URI.create("endit://endit/?bfid=00000000000000000000000000000000000" + i));
+    }
+}